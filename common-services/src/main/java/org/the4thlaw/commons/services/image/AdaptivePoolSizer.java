@@ -0,0 +1,110 @@
+package org.the4thlaw.commons.services.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controller adjusting the number of generation threads from the observed behaviour of the service.
+ * <p>
+ * The size grows by one thread at a time while generations are queued and throughput improves. It shrinks by a factor
+ * when the heap remains occupied after garbage collections or when too much time is spent collecting garbage, and by
+ * one thread when generations get slower, which happens when threads compete for CPU or memory bandwidth. When
+ * growing didn't improve the throughput, the size goes back and doesn't grow again for a few intervals.
+ * </p>
+ */
+final class AdaptivePoolSizer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdaptivePoolSizer.class);
+	/** The fraction of the heap that may remain used after a collection before shrinking. */
+	private static final double HEAP_PRESSURE_THRESHOLD = 0.85;
+	/** The fraction of time that may be spent collecting garbage before shrinking. */
+	private static final double GC_TIME_THRESHOLD = 0.1;
+	/** The factor applied to the size when shrinking because of memory pressure. */
+	private static final double DECREASE_FACTOR = 0.75;
+	/** The minimal throughput improvement for a growth to be considered useful. */
+	private static final double THROUGHPUT_GAIN = 1.05;
+	/** The increase of the average generation time that is considered as contention. */
+	private static final double LATENCY_TOLERANCE = 1.5;
+	/** The number of intervals during which the size doesn't grow after a useless growth. */
+	private static final int GROWTH_COOLDOWN = 6;
+
+	/**
+	 * The observations made during an interval.
+	 *
+	 * @param throughput The number of generations completed per second.
+	 * @param averageGenerationNanos The average generation time, or zero if nothing was generated.
+	 * @param queueDepth The number of queued generations at the end of the interval.
+	 * @param heapAfterGc The highest fraction of a heap pool that remained used after its last collection.
+	 * @param gcTimeRatio The fraction of the interval spent collecting garbage.
+	 */
+	record Sample(double throughput, long averageGenerationNanos, int queueDepth, double heapAfterGc,
+			double gcTimeRatio) {
+	}
+
+	private final int minThreads;
+	private final int maxThreads;
+	private Sample previous;
+	private boolean grew;
+	private int cooldown;
+
+	/**
+	 * Creates the controller.
+	 *
+	 * @param minThreads The minimal number of threads.
+	 * @param maxThreads The maximal number of threads.
+	 */
+	AdaptivePoolSizer(int minThreads, int maxThreads) {
+		this.minThreads = Math.max(minThreads, 1);
+		this.maxThreads = Math.max(maxThreads, this.minThreads);
+	}
+
+	/**
+	 * Computes the number of threads for the next interval.
+	 *
+	 * @param current The current number of threads.
+	 * @param sample The observations made during the last interval.
+	 * @return The new number of threads.
+	 */
+	synchronized int next(int current, Sample sample) {
+		if (cooldown > 0) {
+			cooldown--;
+		}
+		int size = clamp(decide(current, sample));
+		grew = size > current;
+		previous = sample;
+		if (size != current) {
+			LOGGER.debug("Adjusting the thumbnail pool size from {} to {} after observing {}", current, size, sample);
+		}
+		return size;
+	}
+
+	private int decide(int current, Sample sample) {
+		if (sample.heapAfterGc() > HEAP_PRESSURE_THRESHOLD || sample.gcTimeRatio() > GC_TIME_THRESHOLD) {
+			return (int) (current * DECREASE_FACTOR);
+		}
+		if (previous == null) {
+			return sample.queueDepth() > 0 ? current + 1 : current;
+		}
+		if (previous.averageGenerationNanos() > 0
+				&& sample.averageGenerationNanos() > previous.averageGenerationNanos() * LATENCY_TOLERANCE) {
+			return current - 1;
+		}
+		if (grew && sample.throughput() < previous.throughput() * THROUGHPUT_GAIN) {
+			cooldown = GROWTH_COOLDOWN;
+			return current - 1;
+		}
+		if (sample.queueDepth() > 0 && cooldown == 0) {
+			return current + 1;
+		}
+		return current;
+	}
+
+	/**
+	 * Constrains a number of threads to the allowed range.
+	 *
+	 * @param size The number of threads.
+	 * @return The constrained number of threads.
+	 */
+	int clamp(int size) {
+		return Math.min(Math.max(size, minThreads), maxThreads);
+	}
+}
@@ -1,22 +1,52 @@
 package org.the4thlaw.commons.services.image;
 
+import java.awt.Dimension;
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import org.the4thlaw.commons.utils.image.ImageInfo;
 import org.the4thlaw.commons.utils.image.ImageUtils;
+import org.the4thlaw.commons.utils.image.ImageUtils.ImageOutputFormat;
+import org.the4thlaw.commons.utils.image.ResizeObserver;
+import org.the4thlaw.commons.utils.image.ResizeQuality;
+import org.the4thlaw.commons.utils.io.FileUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,16 +57,42 @@ import org.springframework.scheduling.annotation.Scheduled;
  */
 public abstract class BaseThumbnailService {
 	private static final Logger LOGGER = LoggerFactory.getLogger(BaseThumbnailService.class);
-	private static final Pattern THUMB_DIR_PATTERN = Pattern.compile("^\\d+w$");
 	private static final double LENIENCY_WIDTH_FACTOR = 1.2;
 	private static final int THREAD_POOL_RATE = 60 * 60 * 1000;
+	private static final int IMAGE_METADATA_SAVE_RATE = 5 * 60 * 1000;
+	private static final int QUOTA_RATE = 10 * 60 * 1000;
+	private static final int ADAPTIVE_POOL_RATE = 10 * 1000;
+	private static final int HEAP_PRESSURE_RATE = 5 * 1000;
+	private static final int CONTENT_PURGE_RATE = 60 * 60 * 1000;
+	/** The directory holding the generation locks, in the thumbnail directory. */
+	private static final String LOCK_DIRECTORY = ".locks";
+	/** The delay between two attempts to take a generation lock held by another process. */
+	private static final int LOCK_POLL_MILLIS = 200;
+	/** The delay between two refreshes of the generation locks while waiting for memory. */
+	private static final int LOCK_REFRESH_MILLIS = 1000;
+	/** The number of thumb threads while the heap is under pressure. */
+	private static final int THROTTLED_THREADS = 1;
+	/** The name of the file persisting the image metadata cache, in the thumbnail directory. */
+	private static final String IMAGE_METADATA_FILE = ".image-metadata";
 	/** The absolute maximum number of thumb threads that can run in parallel. */
 	private static final int MAX_RUNNING_THUMBS = 10;
-	/**
-	 * Timeout for thumbnail generation. Firefox and Chrome's default request timeouts are 300 seconds but we don't want
-	 * to wait that long.
-	 */
-	private static final int THUMB_TIMEOUT_SECONDS = 150;
+	/** The granularity of the memory budget: one permit per KiB. */
+	private static final int MEMORY_PERMIT_BYTES = 1024;
+	/** The number of times a pre-generation is submitted again after being rejected. */
+	private static final int BATCH_MAX_ATTEMPTS = 50;
+	/** The delay before submitting a rejected pre-generation again. */
+	private static final int BATCH_RETRY_DELAY_MILLIS = 100;
+	/** The options of pre-generations, which wait for as long as needed anyway. */
+	private static final ThumbnailRequestOptions BATCH_REQUEST_OPTIONS = ThumbnailRequestOptions.DEFAULT
+			.withPriority(ThumbnailPriority.BACKGROUND);
+	/** The weight of the latest generation in the moving average of generation times. */
+	private static final double GENERATION_TIME_SMOOTHING = 0.2;
+	/** The default interval between two checks of the original image of a cached thumbnail. */
+	private static final Duration DEFAULT_SOURCE_RECHECK_INTERVAL = Duration.ofSeconds(10);
+	/** The maximum number of thumbnails whose recorded fingerprint is kept in memory. */
+	private static final int MAX_VALIDATED_SOURCES = 100_000;
+	/** The number of threads doing blocking file system work outside of generations, such as looking for fallbacks. */
+	private static final int IO_THREADS = 2;
 
 	/**
 	 * Functional interface to retrieve the path to an image.
@@ -50,9 +106,173 @@ public abstract class BaseThumbnailService {
 		Path getImage();
 	}
 
+	/**
+	 * A memory budget for generations.
+	 *
+	 * @param semaphore The semaphore holding the available memory, in permits of {@link #MEMORY_PERMIT_BYTES}.
+	 * @param totalPermits The total number of permits in the budget.
+	 */
+	private record MemoryBudget(Semaphore semaphore, int totalPermits) {
+		/**
+		 * Converts the estimated memory needed to resize an image to a number of permits. Images that are larger than
+		 * the whole budget consume the whole budget, so that they can still be generated alone.
+		 */
+		int getPermits(Dimension dimensions, int maxWidth) {
+			long permits = ImageUtils.estimateResizeMemory(dimensions, maxWidth) / MEMORY_PERMIT_BYTES + 1;
+			return (int) Math.min(permits, totalPermits);
+		}
+	}
+
+	/**
+	 * A thumbnail generation that is queued or running, and that may be shared by several requests.
+	 */
+	private static final class PendingThumbnail {
+		private final ThumbnailKey key;
+		private final Path image;
+		private final Dimension imageDimensions;
+		private final CompletableFuture<ImageRetrievalResponse> result = new CompletableFuture<>();
+		/** The time at which the last of the requests for this thumbnail times out. */
+		private volatile long deadline;
+		/**
+		 * Whether a background request waits for this thumbnail. Background requests, such as pre-generations, wait
+		 * for as long as needed, so the thumbnail never expires.
+		 */
+		private volatile boolean awaitedInBackground;
+		/** The {@link System#nanoTime()} at which the generation was submitted. */
+		private volatile long submissionNanos;
+		private final ThumbnailPriority priority;
+		/** The client on whose behalf the generation was requested, or <code>null</code> if it is not known. */
+		private final String client;
+		/** The task submitted to the executor. */
+		private volatile Future<?> task;
+		/** The generation lock of a claimed sibling, if generations are coordinated with other processes. */
+		private volatile GenerationLocks.Lock lock;
+		/** The siblings claimed by this generation, which are generated along with it. */
+		private volatile List<PendingThumbnail> siblings = List.of();
+
+		PendingThumbnail(ThumbnailKey key, Path image, Dimension imageDimensions, ThumbnailPriority priority,
+				String client, long deadline) {
+			this.key = key;
+			this.image = image;
+			this.imageDimensions = imageDimensions;
+			this.priority = priority;
+			this.client = client;
+			this.deadline = deadline;
+			this.awaitedInBackground = priority == ThumbnailPriority.BACKGROUND;
+		}
+
+		/**
+		 * Records a new request for this thumbnail, which may time out after the previous ones.
+		 */
+		synchronized void extendDeadline(long requestDeadline) {
+			deadline = Math.max(deadline, requestDeadline);
+		}
+
+		/**
+		 * Checks whether all requests for this thumbnail have timed out.
+		 */
+		boolean isExpired() {
+			return !awaitedInBackground && System.currentTimeMillis() >= deadline;
+		}
+
+		/**
+		 * Checks whether all requests for this thumbnail and for the siblings generated along with it have timed out.
+		 */
+		boolean isAbandoned() {
+			return isExpired() && siblings.stream().allMatch(PendingThumbnail::isExpired);
+		}
+
+		/**
+		 * Aborts the generation if all requests for this thumbnail and its siblings have timed out, or if the
+		 * generation thread was interrupted.
+		 */
+		void checkDeadline() {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new ThumbnailException("Interrupted during the generation of the thumbnail for image "
+						+ key.id() + " at width " + key.width());
+			}
+			if (isAbandoned()) {
+				throw new ThumbnailException("Abandoned the generation of the thumbnail for image " + key.id()
+						+ " at width " + key.width() + ", all requests timed out");
+			}
+		}
+	}
+
+	/**
+	 * Signals that the generation lock of a thumbnail is held by another process.
+	 */
+	private static final class GenerationLockedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		GenerationLockedException() {
+			super(null, null, false, false);
+		}
+	}
+
 	private final ThreadPoolExecutor executor;
+	/**
+	 * Runs the blocking file system work that is not a generation, so that it neither waits behind generations nor
+	 * blocks shared threads such as those of the common pool.
+	 */
+	private final ThreadPoolExecutor ioExecutor;
 	private final Path thumbnailDirectory;
 	private final Optional<Integer> fixedThreads;
+	/** The generations that are currently queued or running, so that concurrent requests can share them. */
+	private final ConcurrentMap<ThumbnailKey, PendingThumbnail> inFlightGenerations = new ConcurrentHashMap<>();
+	/** The sorted widths of the existing thumbnail directories, or <code>null</code> if not listed yet. */
+	private volatile int[] knownWidths;
+	/** The receiver of the metrics. */
+	private volatile ThumbnailMetrics metrics = ThumbnailMetrics.NONE;
+	/** The sorted widths that are generated together. */
+	private volatile int[] siblingWidths = new int[0];
+	/** The memory budget for generations, if enabled. */
+	private volatile MemoryBudget memoryBudget;
+	/** The cache of information about original images, if enabled. */
+	private volatile ImageMetadataCache imageMetadataCache;
+	/** The quota on the size of the thumbnails, if enabled. */
+	private volatile ThumbnailQuota thumbnailQuota;
+	/** The index of existing thumbnails, if enabled. */
+	private volatile ThumbnailIndex thumbnailIndex;
+	/** The store of the thumbnail directory. */
+	private final DiskThumbnailStore diskStore;
+	/** The store in front of the thumbnail directory, or <code>null</code> if there is none. */
+	private volatile ThumbnailStore hotStore;
+	/** The latency objective for generations, or <code>null</code> if load shedding is disabled. */
+	private volatile Duration latencyObjective;
+	/** The exponential moving average of generation times, in nanoseconds, or zero if nothing was generated yet. */
+	private final AtomicLong averageGenerationNanos = new AtomicLong();
+	/** The controller of the pool size, or <code>null</code> if the pool size is not adaptive. */
+	private volatile AdaptivePoolSizer adaptivePoolSizer;
+	/** The number of generations since the pool size was last adjusted. */
+	private final LongAdder recentGenerationCount = new LongAdder();
+	/** The total time of the generations since the pool size was last adjusted. */
+	private final LongAdder recentGenerationNanos = new LongAdder();
+	/** Whether generations produce fast previews, which are upgraded to high quality thumbnails in the background. */
+	private volatile boolean fastPreviews;
+	/** The thumbnails that are previews, with the image they were generated from. */
+	private final ConcurrentMap<ThumbnailKey, Path> previews = new ConcurrentHashMap<>();
+	/** The previews for which an upgrade is queued or running. */
+	private final Set<ThumbnailKey> upgradingPreviews = ConcurrentHashMap.newKeySet();
+	/** The watcher of the heap occupancy, or <code>null</code> if generations are not throttled under pressure. */
+	private volatile HeapPressureMonitor heapPressureMonitor;
+	/** Whether generations are currently throttled because the heap is under pressure. */
+	private volatile boolean heapPressure;
+	/** Whether cached thumbnails are checked against the fingerprint of their original image. */
+	private volatile boolean sourceValidation;
+	/** The interval between two checks of the original image of a cached thumbnail, in nanoseconds. */
+	private volatile long sourceRecheckNanos = DEFAULT_SOURCE_RECHECK_INTERVAL.toNanos();
+	/** The fingerprints recorded for the thumbnails that were validated recently. */
+	private final SourceValidations validatedSources = new SourceValidations(MAX_VALIDATED_SOURCES);
+	/** The hashes of the contents of original images, or <code>null</code> if thumbnails are not deduplicated. */
+	private volatile ContentHashes contentHashes;
+	/** The locks shared with other processes, or <code>null</code> if generations are not coordinated. */
+	private volatile GenerationLocks generationLocks;
+	/** Submits again the generations that wait for a lock held by another process, created with the locks. */
+	private ScheduledExecutorService lockPoller;
+	/** The pool size when the heap is not under pressure. */
+	private int targetPoolSize = 1;
+	private long lastAdjustmentNanos = System.nanoTime();
+	private long lastGcMillis = getGcMillis();
 
 	/**
 	 * Constructor allowing to set the thumbnail directory and queue size.
@@ -74,14 +294,37 @@ public abstract class BaseThumbnailService {
 	protected BaseThumbnailService(Path thumbnailDirectory, int queueSize, Optional<Integer> threadCount) {
 		this.thumbnailDirectory = thumbnailDirectory;
 		this.fixedThreads = threadCount;
+		this.diskStore = new DiskThumbnailStore(thumbnailDirectory, () -> thumbnailIndex);
 
 		// Another option would be to use a LIFO but it seems like it will be pretty confusing for users
-		// (see https://stackoverflow.com/a/8272674/109813)
-		executor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.MINUTES, new LinkedBlockingDeque<>(queueSize));
+		// (see https://stackoverflow.com/a/8272674/109813). Generations are FIFO within each priority.
+		executor = new ThumbnailExecutor(queueSize);
 		executor.allowCoreThreadTimeOut(true);
+		ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+				r -> {
+					Thread thread = new Thread(r, "thumbnail-io");
+					thread.setDaemon(true);
+					return thread;
+				});
+		ioExecutor.allowCoreThreadTimeOut(true);
 		setThumbnailPoolSize();
 	}
 
+	/**
+	 * Stops the threads of the service. Queued generations are discarded, and running ones are interrupted. Should be
+	 * called when the service is shut down.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		ioExecutor.shutdownNow();
+		synchronized (this) {
+			if (lockPoller != null) {
+				lockPoller.shutdownNow();
+			}
+		}
+		disableHeapPressureThrottling();
+	}
+
 	/**
 	 * Sets the thumbnail pool size. If the pool size is dynamic, should be called at periodic intervals to cope with
 	 * changes in the CPU configuration as described by {@link Runtime#availableProcessors()}.
@@ -91,8 +334,11 @@ public abstract class BaseThumbnailService {
 		if (fixedThreads.isPresent()) {
 			int systemMaxThreads = fixedThreads.get();
 			LOGGER.info("Setting thumbnail pool size: fixed = {}", systemMaxThreads);
-			executor.setMaximumPoolSize(systemMaxThreads);
-			executor.setCorePoolSize(systemMaxThreads);
+			resizePool(systemMaxThreads);
+			return;
+		}
+		if (adaptivePoolSizer != null) {
+			LOGGER.debug("Not setting the thumbnail pool size, it is adaptive");
 			return;
 		}
 
@@ -101,159 +347,1693 @@ public abstract class BaseThumbnailService {
 
 		// Allow at most one thumbnail thread per two cores
 		int coreLimit = cores / 2;
-		// Allow at most one thumbnail thread per (roughly) 256MB of RAM
-		long memoryLimit = memory / (255_000_000);
+		// Allow at most one thumbnail thread per (roughly) 256MB of RAM, unless memory is managed by a budget
+		long memoryLimit = memoryBudget == null ? memory / (255_000_000) : MAX_RUNNING_THUMBS;
 		// Take the minimum of those two, constrained
 		int maxThreads = (int) Math.min(Math.min(coreLimit, memoryLimit), MAX_RUNNING_THUMBS);
+		// Always allow at least one thread, a pool can't be empty
+		maxThreads = Math.max(maxThreads, 1);
 
 		LOGGER.info("Setting thumbnail pool size: core = {}, memory = {}, final = {}", coreLimit, memoryLimit,
 				maxThreads);
-		// Gotcha: the maximum pool size is only used when the queue is full. What we need is a fixed pool size
-		// where the core threads can time out
-		executor.setMaximumPoolSize(maxThreads);
-		executor.setCorePoolSize(maxThreads);
+		resizePool(maxThreads);
 	}
 
 	/**
-	 * Gets (and potentially generates) the thumbnail for a given image.
-	 * @param id The ID of the image, used to automatically name the thumbnail.
-	 * @param maxWidth The maximum thumbnail width.
-	 * @param lenient If true, an other image close to the target width could be returned in case of issue.
-	 * @param imageFileLoader A way to get the path to the image to resize.
-	 * @return The thumbnail information.
+	 * Makes the pool size adaptive. The pool size is then adjusted at regular intervals from the generation
+	 * throughput and latency, the number of queued generations, the heap occupancy after garbage collections and the
+	 * time spent collecting garbage. It grows while it improves the throughput, and shrinks under memory pressure or
+	 * when generations get slower. This makes a better use of burstable or shared CPUs than the static sizing.
+	 * <p>
+	 * This has no effect if the service was created with a fixed thread count.
+	 * </p>
+	 *
+	 * @param minThreads The minimal number of threads.
+	 * @param maxThreads The maximal number of threads.
 	 */
-	public ImageRetrievalResponse getThumbnail(long id, int maxWidth, boolean lenient, ImageSupplier imageFileLoader)			 {
-		Path directoryBySize = thumbnailDirectory.resolve(maxWidth + "w");
+	public void enableAdaptivePoolSize(int minThreads, int maxThreads) {
+		if (fixedThreads.isPresent()) {
+			LOGGER.warn("Not enabling the adaptive thumbnail pool size, the thread count is fixed");
+			return;
+		}
+		LOGGER.info("Enabling the adaptive thumbnail pool size between {} and {} threads", minThreads, maxThreads);
+		AdaptivePoolSizer sizer = new AdaptivePoolSizer(minThreads, maxThreads);
+		adaptivePoolSizer = sizer;
+		synchronized (this) {
+			resizePool(sizer.clamp(targetPoolSize));
+		}
+	}
 
-		// Check cache (two possible formats - jpg is more likely so check it first)
-		ImageRetrievalResponse cached = getCachedThumbnail(directoryBySize, id);
-		if (cached != null) {
-			return cached;
+	/**
+	 * Goes back to the static pool size.
+	 */
+	public void disableAdaptivePoolSize() {
+		adaptivePoolSizer = null;
+		setThumbnailPoolSize();
+	}
+
+	/**
+	 * Adjusts the pool size if it is adaptive. Should be called at short, regular intervals.
+	 */
+	@Scheduled(initialDelay = ADAPTIVE_POOL_RATE, fixedRate = ADAPTIVE_POOL_RATE)
+	public void adjustThumbnailPoolSize() {
+		AdaptivePoolSizer sizer = adaptivePoolSizer;
+		if (sizer == null) {
+			return;
 		}
 
-		// No cache hit, check for leniency
-		Path image = imageFileLoader.getImage();
-		int originalWidth;
-		try {
-			originalWidth = ImageUtils.getImageWidth(image.toFile());
-		} catch (IOException e) {
-			throw new ThumbnailException("I/O error while getting image width for " + image, e);
+		AdaptivePoolSizer.Sample sample;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long gcMillis = getGcMillis();
+			double elapsedSeconds = Math.max(now - lastAdjustmentNanos, 1) / 1e9;
+			long count = recentGenerationCount.sumThenReset();
+			long nanos = recentGenerationNanos.sumThenReset();
+			sample = new AdaptivePoolSizer.Sample(count / elapsedSeconds, count == 0 ? 0 : nanos / count,
+					executor.getQueue().size(), getHeapAfterGc(), (gcMillis - lastGcMillis) / 1000.0 / elapsedSeconds);
+			lastAdjustmentNanos = now;
+			lastGcMillis = gcMillis;
 		}
-		if (maxWidth >= originalWidth || (lenient && maxWidth * LENIENCY_WIDTH_FACTOR >= originalWidth)) {
-			LOGGER.debug("Leniently returning the original image for {}, it's {}px wide instead of the requested {}",
-					id, originalWidth, maxWidth);
-			// Return the original image, we don't have anything larger or the requested width is close enough
-			// to the original not to warrant the creation of a resized version
-			return new ImageRetrievalResponse(image);
+
+		int current;
+		synchronized (this) {
+			current = targetPoolSize;
 		}
+		int size = sizer.next(current, sample);
+		if (size != current) {
+			LOGGER.info("Adjusting the thumbnail pool size from {} to {}", current, size);
+			resizePool(size);
+		}
+	}
 
-		/*
-		No cache hit, generate thumbnail.
-		Thumbnails are generated in parallel threads so that we can limit the number of ongoing generations.
-		However, we still block the request while waiting for the result because the browser is expecting the
-		thumbnail.
-		This is just a way to limit resource usage in constrained environments. It impacts the user experience
-		but without this, we could just kill the JVM with OutOfMemoryErrors...
-		 */
-		long submissionTime = System.currentTimeMillis();
+	/**
+	 * Throttles generations when the heap is under pressure. When the tenured heap occupancy crosses the threshold,
+	 * either before or after a garbage collection, the pool is reduced to a single thread. The pool size is restored
+	 * once the occupancy after collections is back under the threshold, which is checked at regular intervals. This
+	 * turns out of memory errors while resizing large images into a temporary slowdown.
+	 * <p>
+	 * The thresholds are set on the memory pools of the JVM, which are shared with any other component using them.
+	 * </p>
+	 *
+	 * @param threshold The fraction of the tenured heap above which generations are throttled, between 0 and 1.
+	 */
+	public void enableHeapPressureThrottling(double threshold) {
+		if (threshold <= 0 || threshold >= 1) {
+			throw new IllegalArgumentException("The heap pressure threshold must be between 0 and 1: " + threshold);
+		}
+		disableHeapPressureThrottling();
+		LOGGER.info("Throttling thumbnail generations above {}% of the tenured heap", (int) (threshold * 100));
+		heapPressureMonitor = new HeapPressureMonitor(threshold, this::onHeapPressure);
+	}
 
-		try {
-			Future<ImageRetrievalResponse> submission = executor
-					.submit(() -> generateThumbnail(id, image, maxWidth, directoryBySize, submissionTime));
-			LOGGER.trace("Thumbnail generation submitted for image {} at width {}", id, maxWidth);
-			logThumbnailExecutorStats();
-			return submission.get(THUMB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-			LOGGER.warn("Interrupted while generating a thumbnail for image {} at width {}", id, maxWidth, e);
-			throw new ThumbnailException("Interrupted during thumbnail generation");
-		} catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
-			LOGGER.warn(
-					"Failed to generate a thumbnail for image {} at width {}, will attempt to provide a fallback. Reason is: {}",
-					id, maxWidth, e.getMessage());
-			return getFallbackThumbnail(id, maxWidth);
+	/**
+	 * Stops throttling generations when the heap is under pressure.
+	 */
+	public void disableHeapPressureThrottling() {
+		HeapPressureMonitor monitor = heapPressureMonitor;
+		if (monitor != null) {
+			heapPressureMonitor = null;
+			monitor.close();
+			setHeapPressure(false);
 		}
 	}
 
-	private static ImageRetrievalResponse getCachedThumbnail(Path directoryBySize, long id) {
-		Path jpgThumb = directoryBySize.resolve(id + ".jpg");
-		if (Files.exists(jpgThumb)) {
-			return new ImageRetrievalResponse(jpgThumb);
+	/**
+	 * Restores the pool size if the heap was under pressure and has recovered. Should be called at regular intervals.
+	 */
+	@Scheduled(initialDelay = HEAP_PRESSURE_RATE, fixedRate = HEAP_PRESSURE_RATE)
+	public void checkHeapPressure() {
+		HeapPressureMonitor monitor = heapPressureMonitor;
+		if (monitor != null && heapPressure && monitor.isRecovered()) {
+			LOGGER.info("The heap has recovered, restoring the thumbnail pool size");
+			setHeapPressure(false);
 		}
-		Path pngThumb = directoryBySize.resolve(id + ".png");
-		if (Files.exists(pngThumb)) {
-			return new ImageRetrievalResponse(pngThumb);
+	}
+
+	private void onHeapPressure() {
+		if (!heapPressure) {
+			LOGGER.warn("The heap is under pressure, throttling thumbnail generations");
+			setHeapPressure(true);
 		}
-		return null;
 	}
 
-	private ImageRetrievalResponse getFallbackThumbnail(long id, int maxWidth)			{
-		List<Integer> availableWidths;
-		try (Stream<Path> list = Files.list(thumbnailDirectory)) {
-			availableWidths = list
-					.filter(Files::isDirectory)
-					// Keep only the names
-					.map(p -> p.getFileName().toString())
-					// Filter what seem to be thumbnail directories
-					.filter(n -> THUMB_DIR_PATTERN.matcher(n).matches())
-					// Parse the width
-					.map(f -> Integer.parseInt(f.substring(0, f.length() - 1)))
-					// Sort so that the closest to maxWidth comes first
-					.sorted((a, b) -> Math.abs(maxWidth - a) - Math.abs(maxWidth - b))
-					.collect(Collectors.toList());
-		} catch (IOException e) {
-			throw new ThumbnailException("Could not find a fallback thumbnail for image" + id, e);
+	private synchronized void setHeapPressure(boolean pressure) {
+		heapPressure = pressure;
+		applyPoolSize();
+	}
+
+	/**
+	 * Changes the pool size, unless it is throttled because of heap pressure in which case the size is restored
+	 * later.
+	 */
+	private synchronized void resizePool(int size) {
+		targetPoolSize = size;
+		applyPoolSize();
+	}
+
+	/**
+	 * Applies the pool size. Gotcha: the maximum pool size is only used when the queue is full. What we need is a
+	 * fixed pool size where the core threads can time out.
+	 */
+	private synchronized void applyPoolSize() {
+		int size = heapPressure ? Math.min(targetPoolSize, THROTTLED_THREADS) : targetPoolSize;
+		// The core size can't exceed the maximum size at any time
+		if (size < executor.getCorePoolSize()) {
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
+		} else {
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
 		}
+	}
 
-		LOGGER.trace("Found the following possible thumbnail sizes: {}", availableWidths);
+	private static long getGcMillis() {
+		return ManagementFactory.getGarbageCollectorMXBeans().stream()
+				.mapToLong(GarbageCollectorMXBean::getCollectionTime)
+				.filter(t -> t > 0)
+				.sum();
+	}
 
-		for (int width : availableWidths) {
-			Path directoryBySize = thumbnailDirectory.resolve(width + "w");
-			ImageRetrievalResponse cached = getCachedThumbnail(directoryBySize, id);
-			if (cached != null) {
-				LOGGER.debug("Found a fallback thumbnail for image {} at size {} instead of size {}", id, width,
-						maxWidth);
-				cached.setExact(false);
-				return cached;
-			}
+	private static double getHeapAfterGc() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(p -> p.getType() == MemoryType.HEAP && p.isCollectionUsageThresholdSupported())
+				.map(MemoryPoolMXBean::getCollectionUsage)
+				.filter(u -> u != null && u.getMax() > 0)
+				.mapToDouble(u -> (double) u.getUsed() / u.getMax())
+				.max()
+				.orElse(0);
+	}
+
+	/**
+	 * Enables admission control based on a memory budget. Before decoding an image, each generation estimates the
+	 * memory it needs from the image dimensions and waits until that much is available in the budget. This allows
+	 * running many generations of small images in parallel while preventing large images from exhausting the heap.
+	 * <p>
+	 * When a budget is set, the automatic pool size is only constrained by the number of cores, since memory is
+	 * accounted for by the budget. Changing the budget while generations are running may temporarily exceed it.
+	 * </p>
+	 *
+	 * @param budgetBytes The memory budget in bytes, or a negative or zero value to disable memory-based admission.
+	 */
+	public void setMemoryBudget(long budgetBytes) {
+		if (budgetBytes <= 0) {
+			LOGGER.info("Disabling the thumbnail memory budget");
+			memoryBudget = null;
+		} else {
+			int permits = (int) Math.max(1, Math.min(budgetBytes / MEMORY_PERMIT_BYTES, Integer.MAX_VALUE));
+			LOGGER.info("Setting the thumbnail memory budget to {} bytes", budgetBytes);
+			memoryBudget = new MemoryBudget(new Semaphore(permits, true), permits);
 		}
+		setThumbnailPoolSize();
+	}
 
-		// If all else fails, abort
-		throw new ThumbnailGenerationOverload("Could not find a fallback thumbnail for image" + id);
+	/**
+	 * Enables load shedding based on a latency objective. Before submitting an interactive generation, the service
+	 * estimates how long it would wait in the queue from the moving average of generation times and the number of
+	 * queued interactive generations. If the objective can't be met, the generation is not submitted and a fallback
+	 * thumbnail is served immediately, or a {@link ThumbnailGenerationOverload} is thrown if there is none, rather
+	 * than having the request wait.
+	 * <p>
+	 * Requests for thumbnails that are already being generated, and {@link ThumbnailPriority#BACKGROUND background}
+	 * requests, are never shed.
+	 * </p>
+	 *
+	 * @param objective The latency objective, or <code>null</code> to disable load shedding.
+	 */
+	public void setLatencyObjective(Duration objective) {
+		if (objective == null || objective.isZero() || objective.isNegative()) {
+			LOGGER.info("Disabling thumbnail load shedding");
+			latencyObjective = null;
+		} else {
+			LOGGER.info("Shedding thumbnail generations that can't complete within {}", objective);
+			latencyObjective = objective;
+		}
 	}
 
-	private ImageRetrievalResponse generateThumbnail(long id, Path image, int maxWidth,
-			Path directoryBySize, long submissionTime) {
-		// If the task was submitted but the request timed out, just complete the task without doing anything
-		long secondsSinceSubmission = (System.currentTimeMillis() - submissionTime) / 1000;
-		if (secondsSinceSubmission > THUMB_TIMEOUT_SECONDS) {
-			LOGGER.debug("Discarded thubmnail generation for image {} at width {}: "
-					+ "the request timed out in the meantime (submitted {} seconds ago)",
-					id, maxWidth, secondsSinceSubmission);
-			return null;
+	/**
+	 * Sets the maximum number of generations that can be queued on behalf of a single client, as given to
+	 * {@link ThumbnailRequestOptions#client()}. Requests of a client that
+	 * reached its limit are handled like when the queue is full, with a fallback thumbnail, so that a client
+	 * requesting many thumbnails at once can't fill the queue for everyone else.
+	 * <p>
+	 * Regardless of this limit, queued generations of the same priority are interleaved between clients.
+	 * </p>
+	 *
+	 * @param maxQueued The maximum number of queued generations per client, or a negative or zero value for no
+	 *        limit other than the size of the queue.
+	 */
+	public void setMaxQueuedGenerationsPerClient(int maxQueued) {
+		if (executor instanceof ThumbnailExecutor thumbnailExecutor) {
+			thumbnailExecutor.setMaxQueuedPerClient(maxQueued <= 0 ? Integer.MAX_VALUE : maxQueued);
 		}
+	}
 
-		if (!Files.isDirectory(directoryBySize)) {
+	/**
+	 * Enables or disables fast previews. When enabled, thumbnails are first generated with a fast but lower quality
+	 * resize and returned as not {@link ImageRetrievalResponse#isExact() exact}, so that clients don't cache them for
+	 * long. A high quality thumbnail is then generated with a {@link ThumbnailPriority#BACKGROUND background}
+	 * priority, and replaces the preview.
+	 * <p>
+	 * Previews are marked in the thumbnail directory. When fast previews are enabled, the directory is scanned in the
+	 * background for previews that weren't upgraded before the service stopped, which are upgraded on their next
+	 * request.
+	 * </p>
+	 *
+	 * @param enabled <code>true</code> to generate fast previews.
+	 * @return A future completed once the existing previews are found.
+	 */
+	public CompletableFuture<Void> setFastPreviews(boolean enabled) {
+		fastPreviews = enabled;
+		if (!enabled) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.runAsync(() -> {
 			try {
-				Files.createDirectories(directoryBySize);
+				diskStore.findPreviews().forEach(previews::putIfAbsent);
 			} catch (IOException e) {
-				throw new ThumbnailException("I/O error while creating thumbnail directory", e);
+				LOGGER.warn("Failed to find the existing previews, they won't be upgraded", e);
+				throw new ThumbnailException("I/O error while looking for previews", e);
 			}
-			LOGGER.debug("Creating thumbnail directory: {}", directoryBySize);
-		} else {
-			LOGGER.trace("Thumbnail directory exists: {}", directoryBySize);
+		}, ioExecutor);
+	}
+
+	/**
+	 * Enables or disables the validation of cached thumbnails against their original image. When enabled, the size
+	 * and last modification time of the original image are recorded next to each generated thumbnail, and checked
+	 * when the thumbnail is served. Thumbnails whose original image was replaced are regenerated on their next
+	 * request, so that the regenerations are spread over time rather than requiring to clear the thumbnail directory.
+	 * <p>
+	 * The recorded fingerprints are kept in memory, and the original image of a thumbnail is checked at most once per
+	 * {@link #setSourceRecheckInterval(Duration) interval}: the {@link ImageSupplier} is only called for cache hits
+	 * when the original image is due for a check. Thumbnails that were generated before the validation was enabled
+	 * are only considered stale if their original image is more recent.
+	 * </p>
+	 *
+	 * @param enabled <code>true</code> to validate cached thumbnails.
+	 */
+	public void setSourceValidation(boolean enabled) {
+		validatedSources.clear();
+		sourceValidation = enabled;
+	}
+
+	/**
+	 * Sets the minimal interval between two checks of the original image of a cached thumbnail, when
+	 * {@link #setSourceValidation(boolean) source validation} is enabled. Replaced originals may be served stale
+	 * thumbnails for that long. Defaults to 10 seconds.
+	 *
+	 * @param interval The interval. A zero interval checks the original image each time a thumbnail is served.
+	 * @throws IllegalArgumentException If the interval is negative.
+	 */
+	public void setSourceRecheckInterval(Duration interval) {
+		if (interval.isNegative()) {
+			throw new IllegalArgumentException("The recheck interval can't be negative: " + interval);
 		}
+		sourceRecheckNanos = interval.toNanos();
+	}
 
-		logThumbnailExecutorStats();
+	/**
+	 * Enables the deduplication of thumbnails for original images with identical contents. Before generating a
+	 * thumbnail, the original image is hashed: if a thumbnail was already generated for the same contents at the same
+	 * width, it is shared instead of being generated again. Shared thumbnails are hard links when the file system
+	 * supports them, so they are only stored once.
+	 * <p>
+	 * Only high quality thumbnails are shared, not {@link #setFastPreviews(boolean) previews}. Thumbnails that are not
+	 * used by any image anymore are deleted by {@link #purgeUnusedThumbnailContent()}.
+	 * </p>
+	 *
+	 * @param maxCachedHashes The maximum number of hashes to keep in memory, so that the original images of the
+	 *        most recently generated thumbnails don't need to be read again for other widths.
+	 */
+	public void enableContentDeduplication(int maxCachedHashes) {
+		contentHashes = new ContentHashes(maxCachedHashes);
+	}
+
+	/**
+	 * Disables the deduplication of thumbnails. Thumbnails that are already shared remain so.
+	 */
+	public void disableContentDeduplication() {
+		contentHashes = null;
+	}
+
+	/**
+	 * Deletes the shared thumbnails that are not used by any image anymore, for example because of the
+	 * {@link #setThumbnailQuota(long) quota}. Should be called at periodic intervals if deduplication is enabled.
+	 * <p>
+	 * Whether a shared thumbnail is used is told by its number of hard links, so widths where the file system didn't
+	 * support links and thumbnails were copied are not purged.
+	 * </p>
+	 */
+	@Scheduled(initialDelay = CONTENT_PURGE_RATE, fixedDelay = CONTENT_PURGE_RATE)
+	public void purgeUnusedThumbnailContent() {
+		if (contentHashes == null) {
+			return;
+		}
+		try {
+			int purged = diskStore.purgeUnusedContent();
+			LOGGER.debug("Purged {} unused shared thumbnails", purged);
+		} catch (IOException e) {
+			LOGGER.warn("Failed to purge the unused shared thumbnails", e);
+		}
+	}
+
+	/**
+	 * Enables the coordination of generations with the other processes sharing the thumbnail directory, for example
+	 * over a network file system. Before generating a thumbnail, a lock file is created for its image and width in
+	 * the thumbnail directory: processes that don't get the lock wait until it is released, and then use the thumbnail
+	 * that was generated by its holder.
+	 * <p>
+	 * The lock files are refreshed while generations make progress. Locks that were not refreshed for the given
+	 * duration, for example because their process crashed, are taken over. {@link #setSiblingWidths(int...) Sibling
+	 * widths} are locked as well, and left to the other process if it holds their lock.
+	 * </p>
+	 *
+	 * @param staleAfter The time after which a lock is considered stale. It must be longer than the time needed to
+	 *        decode the largest images, and account for clock differences between the hosts.
+	 */
+	public synchronized void enableGenerationLocks(Duration staleAfter) {
+		if (lockPoller == null) {
+			lockPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "thumbnail-lock-poller");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		generationLocks = new GenerationLocks(thumbnailDirectory.resolve(LOCK_DIRECTORY), staleAfter);
+	}
+
+	/**
+	 * Disables the coordination of generations with other processes.
+	 */
+	public void disableGenerationLocks() {
+		generationLocks = null;
+	}
+
+	/**
+	 * Sets the layout of the thumbnail directory. This doesn't move the existing thumbnails, which won't be found
+	 * anymore if they were stored with another layout: use {@link #migrateThumbnailLayout(ThumbnailLayout)} to change
+	 * the layout of an existing thumbnail directory.
+	 *
+	 * @param layout The layout.
+	 */
+	public void setThumbnailLayout(ThumbnailLayout layout) {
+		diskStore.setLayout(layout);
+	}
 
+	/**
+	 * Moves the existing thumbnails to a new layout, in parallel, and uses that layout from now on. Thumbnails remain
+	 * available during the migration. This may take a while for large thumbnail directories, and is best done while
+	 * the service is not generating thumbnails.
+	 *
+	 * @param layout The new layout.
+	 */
+	public void migrateThumbnailLayout(ThumbnailLayout layout) {
 		try {
-			Path output = ImageUtils.resize(image, maxWidth, fmt -> directoryBySize.resolve(id + "." + fmt.getFileExtension()));
-			return new ImageRetrievalResponse(output);
+			diskStore.migrate(layout);
 		} catch (IOException e) {
-			throw new ThumbnailException("I/O error while writing the thumbnail", e);
+			throw new ThumbnailException("I/O error while migrating the thumbnail directory to the " + layout
+					+ " layout", e);
+		}
+	}
+
+	/**
+	 * Sets a store in front of the thumbnail directory. Thumbnails are looked up in that store first, and thumbnails
+	 * served from the directory are offered to it. This is typically a {@link MemoryThumbnailStore}, so that the most
+	 * requested thumbnails are served without any disk I/O.
+	 * <p>
+	 * Thumbnails served from such a store may not be backed by a file, see {@link ImageRetrievalResponse#getFile()}.
+	 * </p>
+	 *
+	 * @param store The store, or <code>null</code> to only use the thumbnail directory.
+	 */
+	public void setHotThumbnailStore(ThumbnailStore store) {
+		hotStore = store;
+	}
+
+	/**
+	 * Sets the receiver of the metrics of this service.
+	 *
+	 * @param metrics The metrics. Use {@link ThumbnailMetrics#NONE} to discard metrics.
+	 * @see ThumbnailMeterBinder
+	 */
+	public void setMetrics(ThumbnailMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the widths that are generated together. When a thumbnail is generated for one of these widths, the
+	 * thumbnails for the other widths are generated at the same time if they are missing, so that the original image
+	 * is only decoded once. This is typically the set of widths used in responsive <code>srcset</code> attributes.
+	 *
+	 * @param widths The sibling widths. Pass no width to disable sibling generation.
+	 */
+	public void setSiblingWidths(int... widths) {
+		siblingWidths = IntStream.of(widths).distinct().sorted().toArray();
+	}
+
+	/**
+	 * Enables a cache of the information about original images, such as their dimensions, so that their headers
+	 * don't need to be read each time a thumbnail is missing. Cached information is discarded as soon as the size or
+	 * last modification time of an image changes.
+	 * <p>
+	 * If the cache is persistent, it is loaded immediately from a file in the thumbnail directory, and saved
+	 * periodically by {@link #saveImageMetadataCache()}.
+	 * </p>
+	 *
+	 * @param maxEntries The maximum number of images to keep in the cache. The least recently used are evicted first.
+	 * @param persistent Whether to persist the cache so that it survives restarts.
+	 */
+	public void enableImageMetadataCache(int maxEntries, boolean persistent) {
+		ImageMetadataCache cache = new ImageMetadataCache(maxEntries,
+				persistent ? thumbnailDirectory.resolve(IMAGE_METADATA_FILE) : null);
+		try {
+			cache.load();
+		} catch (IOException e) {
+			LOGGER.warn("Failed to load the image metadata cache, starting from an empty one", e);
+		}
+		imageMetadataCache = cache;
+	}
+
+	/**
+	 * Disables the cache of the information about original images.
+	 */
+	public void disableImageMetadataCache() {
+		imageMetadataCache = null;
+	}
+
+	/**
+	 * Saves the cache of the information about original images, if it is persistent and was modified. Should be
+	 * called at periodic intervals, and when the service is shut down.
+	 */
+	@Scheduled(initialDelay = IMAGE_METADATA_SAVE_RATE, fixedDelay = IMAGE_METADATA_SAVE_RATE)
+	public void saveImageMetadataCache() {
+		ImageMetadataCache cache = imageMetadataCache;
+		if (cache == null) {
+			return;
+		}
+		try {
+			cache.save();
+		} catch (IOException e) {
+			LOGGER.warn("Failed to save the image metadata cache", e);
 		}
 	}
 
+	/**
+	 * Sets a quota on the size of the thumbnail directory. When the thumbnails exceed the quota, the least recently
+	 * served ones are evicted by {@link #enforceThumbnailQuota()} until they only use 90% of the quota. Recency is
+	 * tracked in memory, thumbnails that have not been served since the service started are considered as last used
+	 * when they were generated.
+	 *
+	 * @param maxBytes The quota in bytes, or a negative or zero value to disable the quota.
+	 */
+	public void setThumbnailQuota(long maxBytes) {
+		if (maxBytes <= 0) {
+			LOGGER.info("Disabling the thumbnail quota");
+			thumbnailQuota = null;
+		} else {
+			LOGGER.info("Setting the thumbnail quota to {} bytes", maxBytes);
+			thumbnailQuota = new ThumbnailQuota(maxBytes);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used thumbnails if the thumbnail quota is exceeded. Should be called at periodic
+	 * intervals if a quota is set.
+	 */
+	@Scheduled(initialDelay = QUOTA_RATE, fixedDelay = QUOTA_RATE)
+	public void enforceThumbnailQuota() {
+		ThumbnailQuota quota = thumbnailQuota;
+		if (quota == null) {
+			return;
+		}
+		try {
+			quota.enforce(thumbnailDirectory, (key, file) -> {
+				diskStore.remove(key.id(), key.width());
+				validatedSources.remove(key);
+				ThumbnailStore hot = hotStore;
+				if (hot != null) {
+					hot.remove(key.id(), key.width());
+				}
+				previews.remove(key);
+			});
+		} catch (IOException e) {
+			LOGGER.warn("Failed to enforce the thumbnail quota", e);
+		}
+	}
+
+	/**
+	 * Enables an in-memory index of the existing thumbnails, so that cache hits can be resolved without querying the
+	 * file system. This is especially useful if the thumbnail directory is on a network share.
+	 * <p>
+	 * The index is loaded in the background by scanning the thumbnail directory. Until it is loaded, cache hits are
+	 * checked on the file system as usual. Once it is loaded, the service assumes that it is the only one to manage
+	 * the thumbnail directory: thumbnails removed by other means must be followed by a call to this method to reload
+	 * the index.
+	 * </p>
+	 *
+	 * @return A future completed once the index is loaded. Callers can wait for it to ensure that the index is used as
+	 *         soon as the application starts.
+	 */
+	public CompletableFuture<Void> enableThumbnailIndex() {
+		ThumbnailIndex index = new ThumbnailIndex();
+		thumbnailIndex = index;
+		return CompletableFuture.runAsync(() -> {
+			try {
+				index.load(thumbnailDirectory);
+			} catch (IOException e) {
+				LOGGER.warn("Failed to load the thumbnail index, it will be disabled", e);
+				if (thumbnailIndex == index) {
+					thumbnailIndex = null;
+				}
+				throw new ThumbnailException("I/O error while loading the thumbnail index", e);
+			}
+		}, ioExecutor);
+	}
+
+	/**
+	 * Disables the in-memory index of existing thumbnails.
+	 */
+	public void disableThumbnailIndex() {
+		thumbnailIndex = null;
+	}
+
+	/**
+	 * Gets (and potentially generates) the thumbnail for a given image.
+	 * @param id The ID of the image, used to automatically name the thumbnail.
+	 * @param maxWidth The maximum thumbnail width.
+	 * @param lenient If true, an other image close to the target width could be returned in case of issue.
+	 * @param imageFileLoader A way to get the path to the image to resize.
+	 * @return The thumbnail information.
+	 */
+	public ImageRetrievalResponse getThumbnail(long id, int maxWidth, boolean lenient, ImageSupplier imageFileLoader)			 {
+		return getThumbnail(id, maxWidth, lenient, ThumbnailRequestOptions.DEFAULT, imageFileLoader);
+	}
+
+	/**
+	 * Gets (and potentially generates) the thumbnail for a given image, with given request options.
+	 * @param id The ID of the image, used to automatically name the thumbnail.
+	 * @param maxWidth The maximum thumbnail width.
+	 * @param lenient If true, an other image close to the target width could be returned in case of issue.
+	 * @param options The priority, client and timeout of the request.
+	 * @param imageFileLoader A way to get the path to the image to resize.
+	 * @return The thumbnail information.
+	 */
+	public ImageRetrievalResponse getThumbnail(long id, int maxWidth, boolean lenient,
+			ThumbnailRequestOptions options, ImageSupplier imageFileLoader) {
+		/*
+		Thumbnails are generated in parallel threads so that we can limit the number of ongoing generations.
+		However, we still block the request while waiting for the result because the browser is expecting the
+		thumbnail.
+		This is just a way to limit resource usage in constrained environments. It impacts the user experience
+		but without this, we could just kill the JVM with OutOfMemoryErrors...
+		 */
+		try {
+			return requestThumbnail(id, maxWidth, lenient, options, imageFileLoader)
+					.get(options.timeout().toNanos(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.warn("Interrupted while generating a thumbnail for image {} at width {}", id, maxWidth, e);
+			throw new ThumbnailException("Interrupted during thumbnail generation");
+		} catch (ExecutionException | TimeoutException | RejectedExecutionException | CancellationException e) {
+			LOGGER.warn(
+					"Failed to generate a thumbnail for image {} at width {}, will attempt to provide a fallback. Reason is: {}",
+					id, maxWidth, e.getMessage());
+			if (e instanceof TimeoutException) {
+				cancelIfExpired(new ThumbnailKey(id, maxWidth));
+			}
+			return getFallbackThumbnail(id, maxWidth);
+		}
+	}
+
+	/**
+	 * Gets (and potentially generates) the thumbnail for a given image, without blocking the calling thread while the
+	 * thumbnail is being generated.
+	 * <p>
+	 * The semantics are the same as for {@link #getThumbnail(long, int, boolean, ImageSupplier)}: if the generation
+	 * fails or times out, the returned future is completed with a fallback thumbnail, or fails with a
+	 * {@link ThumbnailGenerationOverload} if no fallback could be found. Cache hits and lenient matches are resolved
+	 * on the calling thread and return an already completed future.
+	 * </p>
+	 *
+	 * @param id The ID of the image, used to automatically name the thumbnail.
+	 * @param maxWidth The maximum thumbnail width.
+	 * @param lenient If true, an other image close to the target width could be returned in case of issue.
+	 * @param imageFileLoader A way to get the path to the image to resize.
+	 * @return A future completed with the thumbnail information.
+	 */
+	public CompletableFuture<ImageRetrievalResponse> getThumbnailAsync(long id, int maxWidth, boolean lenient,
+			ImageSupplier imageFileLoader) {
+		return getThumbnailAsync(id, maxWidth, lenient, ThumbnailRequestOptions.DEFAULT, imageFileLoader);
+	}
+
+	/**
+	 * Gets (and potentially generates) the thumbnail for a given image with given request options, without blocking
+	 * the calling thread while the thumbnail is being generated.
+	 *
+	 * @param id The ID of the image, used to automatically name the thumbnail.
+	 * @param maxWidth The maximum thumbnail width.
+	 * @param lenient If true, an other image close to the target width could be returned in case of issue.
+	 * @param options The priority, client and timeout of the request.
+	 * @param imageFileLoader A way to get the path to the image to resize.
+	 * @return A future completed with the thumbnail information.
+	 * @see #getThumbnailAsync(long, int, boolean, ImageSupplier)
+	 */
+	public CompletableFuture<ImageRetrievalResponse> getThumbnailAsync(long id, int maxWidth, boolean lenient,
+			ThumbnailRequestOptions options, ImageSupplier imageFileLoader) {
+		CompletableFuture<ImageRetrievalResponse> request;
+		try {
+			// Work on a copy: timing out must not complete the generation shared with other requests
+			request = requestThumbnail(id, maxWidth, lenient, options, imageFileLoader).copy();
+		} catch (RejectedExecutionException e) {
+			request = CompletableFuture.failedFuture(e);
+		} catch (ThumbnailException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+
+		Function<Throwable, ImageRetrievalResponse> fallback = e -> {
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+			LOGGER.warn(
+					"Failed to generate a thumbnail for image {} at width {}, will attempt to provide a fallback. Reason is: {}",
+					id, maxWidth, cause.getMessage());
+			if (cause instanceof TimeoutException) {
+				cancelIfExpired(new ThumbnailKey(id, maxWidth));
+			}
+			return getFallbackThumbnail(id, maxWidth);
+		};
+		if (request.isDone()) {
+			// Resolved on the calling thread, like cache hits
+			return request.exceptionally(fallback);
+		}
+		// Looking for a fallback may list directories, so it must not block the thread that timed the request out
+		return request.orTimeout(options.timeout().toNanos(), TimeUnit.NANOSECONDS).exceptionallyAsync(fallback,
+				ioExecutor);
+	}
+
+	/**
+	 * Generates thumbnails ahead of time, for instance to warm the cache after an import. Thumbnails that are already
+	 * in the cache are skipped. The other ones are generated with a {@link ThumbnailPriority#BACKGROUND background}
+	 * priority, so that they don't delay interactive requests.
+	 * <p>
+	 * This method blocks until all thumbnails have been processed. It only keeps as many generations in flight as
+	 * there are generation threads, so that requests are consumed as generations complete and the generation queue
+	 * is never filled. If a generation is rejected nevertheless, for instance because interactive requests filled
+	 * the queue, it is retried after a short delay and eventually reported as failed. Unlike interactive requests,
+	 * pre-generations don't time out, however long they wait behind other generations.
+	 * </p>
+	 *
+	 * @param requests The thumbnails to generate.
+	 * @param listener The listener receiving the progress.
+	 * @return The outcome of the pre-generation.
+	 */
+	public ThumbnailBatchResult pregenerateThumbnails(Iterator<ThumbnailBatchRequest> requests,
+			ThumbnailBatchListener listener) {
+		int maxInFlight = Math.max(executor.getMaximumPoolSize(), 1);
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		int cached = 0;
+		AtomicInteger generated = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+
+		try {
+			while (requests.hasNext()) {
+				ThumbnailBatchRequest request = requests.next();
+				long id = request.id();
+				for (int width : request.widths()) {
+					ImageRetrievalResponse cachedThumbnail = getCachedThumbnail(width, id);
+					if (cachedThumbnail != null && !(sourceValidation
+							&& isStale(cachedThumbnail, id, width, request.imageSupplier().getImage()))) {
+						cached++;
+						listener.cached(id, width);
+						continue;
+					}
+
+					inFlight.acquire();
+					CompletableFuture<ImageRetrievalResponse> generation;
+					try {
+						generation = requestBatchThumbnail(id, width, request.imageSupplier());
+					} catch (RuntimeException e) {
+						inFlight.release();
+						LOGGER.warn("Failed to pre-generate the thumbnail for image {} at width {}: {}", id, width,
+								e.getMessage());
+						failed.incrementAndGet();
+						listener.failed(id, width, e);
+						continue;
+					}
+
+					generation.whenComplete((response, e) -> {
+						try {
+							if (e == null) {
+								generated.incrementAndGet();
+								listener.generated(id, width);
+							} else {
+								LOGGER.warn("Failed to pre-generate the thumbnail for image {} at width {}: {}", id,
+										width, e.getMessage());
+								failed.incrementAndGet();
+								listener.failed(id, width, e);
+							}
+						} finally {
+							// Only release once counted, so that the result is complete when all permits are back
+							inFlight.release();
+						}
+					});
+				}
+			}
+
+			// Wait for the last generations
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ThumbnailException("Interrupted during thumbnail pre-generation");
+		}
+
+		ThumbnailBatchResult result = new ThumbnailBatchResult(cached, generated.get(), failed.get());
+		LOGGER.info("Thumbnail pre-generation complete: {}", result);
+		return result;
+	}
+
+	/**
+	 * Generates thumbnails ahead of time.
+	 *
+	 * @param requests The thumbnails to generate.
+	 * @param listener The listener receiving the progress.
+	 * @return The outcome of the pre-generation.
+	 * @see #pregenerateThumbnails(Iterator, ThumbnailBatchListener)
+	 */
+	public ThumbnailBatchResult pregenerateThumbnails(Stream<ThumbnailBatchRequest> requests,
+			ThumbnailBatchListener listener) {
+		return pregenerateThumbnails(requests.iterator(), listener);
+	}
+
+	private CompletableFuture<ImageRetrievalResponse> requestBatchThumbnail(long id, int width,
+			ImageSupplier imageFileLoader) throws InterruptedException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return requestThumbnail(id, width, false, BATCH_REQUEST_OPTIONS, imageFileLoader);
+			} catch (RejectedExecutionException e) {
+				if (attempt >= BATCH_MAX_ATTEMPTS) {
+					throw e;
+				}
+				LOGGER.debug("Pre-generation of the thumbnail for image {} at width {} was rejected, retrying", id,
+						width);
+				Thread.sleep(BATCH_RETRY_DELAY_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Looks for an existing thumbnail, or an original image that is good enough, and requests the generation of a
+	 * thumbnail if none could be found.
+	 *
+	 * @return A future for the thumbnail. It may be shared with other requests, so it must not be completed by the
+	 *         caller.
+	 * @throws RejectedExecutionException If the generation could not be submitted.
+	 */
+	private CompletableFuture<ImageRetrievalResponse> requestThumbnail(long id, int maxWidth, boolean lenient,
+			ThumbnailRequestOptions options, ImageSupplier imageFileLoader) {
+		// Check cache (two possible formats - jpg is more likely so check it first)
+		ThumbnailStore hot = hotStore;
+		ImageRetrievalResponse cached = hot == null ? null : hot.get(id, maxWidth);
+		boolean hotHit = cached != null;
+		if (!hotHit) {
+			cached = diskStore.get(id, maxWidth);
+		}
+		Path image = null;
+		if (cached != null && sourceValidation
+				&& !validatedSources.isRecent(new ThumbnailKey(id, maxWidth), sourceRecheckNanos)) {
+			image = imageFileLoader.getImage();
+			if (isStale(cached, id, maxWidth, image)) {
+				cached = null;
+			}
+		}
+		if (cached != null) {
+			recordAccess(maxWidth, id);
+			metrics.cacheHit(maxWidth);
+			checkPreview(cached, id, maxWidth);
+			// Only thumbnails that are actually served are offered to the hot store
+			if (hot != null && !hotHit) {
+				hot.put(id, maxWidth, cached);
+			}
+			return CompletableFuture.completedFuture(cached);
+		}
+		metrics.cacheMiss(maxWidth);
+
+		// No cache hit, check for leniency
+		if (image == null) {
+			image = imageFileLoader.getImage();
+		}
+		Dimension originalDimensions;
+		try {
+			originalDimensions = getImageInfo(image).getDimensions();
+		} catch (IOException e) {
+			throw new ThumbnailException("I/O error while getting image width for " + image, e);
+		}
+		int originalWidth = originalDimensions.width;
+		if (maxWidth >= originalWidth || (lenient && maxWidth * LENIENCY_WIDTH_FACTOR >= originalWidth)) {
+			LOGGER.debug("Leniently returning the original image for {}, it's {}px wide instead of the requested {}",
+					id, originalWidth, maxWidth);
+			// Return the original image, we don't have anything larger or the requested width is close enough
+			// to the original not to warrant the creation of a resized version
+			metrics.lenientOriginal(maxWidth);
+			return CompletableFuture.completedFuture(new ImageRetrievalResponse(image));
+		}
+
+		/*
+		No cache hit, generate thumbnail.
+		Identical requests are coalesced: if a generation is already queued or running for the same image and width,
+		we just wait for its outcome rather than decoding and resizing the same image once more.
+		 */
+		ThumbnailKey key = new ThumbnailKey(id, maxWidth);
+		ThumbnailPriority priority = options.priority();
+		long deadline = System.currentTimeMillis() + options.timeout().toMillis();
+		PendingThumbnail pending = new PendingThumbnail(key, image, originalDimensions, priority, options.client(),
+				deadline);
+		PendingThumbnail existing = inFlightGenerations.putIfAbsent(key, pending);
+		if (existing != null) {
+			LOGGER.trace("Thumbnail generation already in progress for image {} at width {}", id, maxWidth);
+			existing.extendDeadline(deadline);
+			if (priority == ThumbnailPriority.BACKGROUND) {
+				existing.awaitedInBackground = true;
+			}
+			// Don't let a more urgent request wait behind the queued generations of a lower priority
+			if (executor instanceof ThumbnailExecutor thumbnailExecutor && existing.task != null) {
+				thumbnailExecutor.raisePriority(existing.task, priority);
+			}
+			return existing.result;
+		}
+		submitGeneration(pending);
+		return pending.result;
+	}
+
+	private void recordAccess(int width, long id) {
+		ThumbnailQuota quota = thumbnailQuota;
+		if (quota != null) {
+			quota.recordAccess(new ThumbnailKey(id, width));
+		}
+	}
+
+	/**
+	 * Checks whether the original image of a cached thumbnail was replaced since the thumbnail was generated, unless
+	 * it was checked recently. The recorded fingerprint is only read from the thumbnail directory if it is not in
+	 * memory. Stale thumbnails are dropped from the hot store, and left in the thumbnail directory until they are
+	 * regenerated so that they can still be used as fallbacks.
+	 */
+	private boolean isStale(ImageRetrievalResponse cached, long id, int width, Path image) {
+		ThumbnailKey key = new ThumbnailKey(id, width);
+		if (validatedSources.isRecent(key, sourceRecheckNanos)) {
+			return false;
+		}
+
+		boolean stale;
+		try {
+			SourceFingerprint current = SourceFingerprint.of(image);
+			SourceFingerprint recorded = validatedSources.getRecorded(key);
+			if (recorded == null) {
+				recorded = diskStore.getFingerprint(id, width);
+			}
+			if (recorded == null) {
+				// Generated before the validation was enabled: trust it unless the original is more recent
+				stale = current.lastModified() > cached.getLastModified();
+				if (!stale) {
+					recordFingerprint(id, width, current);
+				}
+			} else {
+				stale = !recorded.equals(current);
+				if (!stale) {
+					validatedSources.put(key, recorded);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Could not check whether the thumbnail for image {} at width {} is stale: {}", id, width,
+					e.getMessage());
+			return false;
+		}
+
+		if (stale) {
+			LOGGER.debug("The original image of the thumbnail for image {} at width {} changed", id, width);
+			validatedSources.remove(key);
+			removePreview(id, width);
+			ThumbnailStore hot = hotStore;
+			if (hot != null) {
+				hot.remove(id, width);
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * Records the fingerprint of the original image of a thumbnail, in the thumbnail directory and in memory.
+	 */
+	private void recordFingerprint(long id, int width, SourceFingerprint fingerprint) throws IOException {
+		diskStore.setFingerprint(id, width, fingerprint);
+		validatedSources.put(new ThumbnailKey(id, width), fingerprint);
+	}
+
+	private ImageInfo getImageInfo(Path image) throws IOException {
+		ImageMetadataCache cache = imageMetadataCache;
+		if (cache != null) {
+			return cache.getImageInfo(image);
+		}
+		return ImageUtils.getImageInfo(image.toFile());
+	}
+
+	private void submitGeneration(PendingThumbnail pending) {
+		ThumbnailKey key = pending.key;
+		try {
+			checkLatencyObjective(pending);
+			pending.submissionNanos = System.nanoTime();
+			Callable<Void> generation = () -> {
+				/*
+				The generation stops being shared before it is completed: a request made once it is complete must
+				not join it, since the thumbnail may have changed since then.
+				Generations waiting for another process remain in flight so that new requests join them.
+				 */
+				try {
+					metrics.queueWait(System.nanoTime() - pending.submissionNanos);
+					ImageRetrievalResponse response = generateThumbnail(pending);
+					inFlightGenerations.remove(key, pending);
+					pending.result.complete(response);
+				} catch (GenerationLockedException e) {
+					retryWhenUnlocked(pending);
+				} catch (RuntimeException | Error e) {
+					inFlightGenerations.remove(key, pending);
+					pending.result.completeExceptionally(e);
+				}
+				return null;
+			};
+			pending.task = executor.submit(
+					new ThumbnailExecutor.PrioritizedCallable<>(pending.priority, pending.client, generation));
+		} catch (RejectedExecutionException e) {
+			inFlightGenerations.remove(key, pending);
+			pending.result.completeExceptionally(e);
+			throw e;
+		}
+		LOGGER.trace("Thumbnail generation submitted for image {} at width {}", key.id(), key.width());
+		logThumbnailExecutorStats();
+	}
+
+	/**
+	 * Rejects an interactive generation if it is predicted to wait in the queue for longer than the latency
+	 * objective. The prediction assumes that the queued interactive generations are shared evenly between the threads
+	 * and take the average generation time. Background generations run after them, so they are not counted.
+	 * <p>
+	 * Generations are always admitted when no interactive generation is queued, so that the average keeps being
+	 * refreshed: a few slow generations can't disable generation for good.
+	 * </p>
+	 *
+	 * @throws RejectedExecutionException If the generation should be shed.
+	 */
+	private void checkLatencyObjective(PendingThumbnail pending) {
+		Duration objective = latencyObjective;
+		long average = averageGenerationNanos.get();
+		if (objective == null || average == 0 || pending.priority != ThumbnailPriority.INTERACTIVE) {
+			return;
+		}
+
+		int queueDepth = executor instanceof ThumbnailExecutor thumbnailExecutor
+				? thumbnailExecutor.getQueuedCount(ThumbnailPriority.INTERACTIVE)
+				: executor.getQueue().size();
+		int threads = Math.max(executor.getMaximumPoolSize(), 1);
+		long expectedNanos = queueDepth * average / threads;
+		if (expectedNanos > objective.toNanos()) {
+			ThumbnailKey key = pending.key;
+			throw new RejectedExecutionException("Shedding the generation of the thumbnail for image " + key.id()
+					+ " at width " + key.width() + ": it is expected to wait "
+					+ TimeUnit.NANOSECONDS.toMillis(expectedNanos) + "ms behind " + queueDepth
+					+ " queued generations");
+		}
+	}
+
+	private void recordGenerationTime(long nanos) {
+		averageGenerationNanos.updateAndGet(
+				average -> average == 0 ? nanos
+						: (long) (GENERATION_TIME_SMOOTHING * nanos + (1 - GENERATION_TIME_SMOOTHING) * average));
+	}
+
+	/**
+	 * Cancels a generation if all requests for it, and for the siblings generated along with it, have timed out. If
+	 * the generation is still queued, it is removed from the queue. If it is running, its thread is interrupted,
+	 * which will abort it at the next check of its deadline.
+	 */
+	private void cancelIfExpired(ThumbnailKey key) {
+		PendingThumbnail pending = inFlightGenerations.get(key);
+		if (pending == null || !pending.isAbandoned() || !inFlightGenerations.remove(key, pending)) {
+			return;
+		}
+
+		LOGGER.debug("Cancelling the generation of the thumbnail for image {} at width {}: all requests timed out",
+				key.id(), key.width());
+		pending.result.completeExceptionally(new ThumbnailException("All requests for the thumbnail for image "
+				+ key.id() + " at width " + key.width() + " timed out"));
+		Future<?> task = pending.task;
+		if (task != null) {
+			if (task instanceof Runnable runnable) {
+				executor.remove(runnable);
+			}
+			task.cancel(true);
+		}
+	}
+
+	/**
+	 * Looks up a thumbnail in the hot store, then in the thumbnail directory. Thumbnails found in the directory are
+	 * not offered to the hot store, so that internal lookups such as those of the pre-generations or fallbacks don't
+	 * load thumbnails in memory and evict those that are actually requested.
+	 */
+	private ImageRetrievalResponse getCachedThumbnail(int width, long id) {
+		ThumbnailStore hot = hotStore;
+		if (hot != null) {
+			ImageRetrievalResponse cached = hot.get(id, width);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		return diskStore.get(id, width);
+	}
+
+	private ImageRetrievalResponse getFallbackThumbnail(long id, int maxWidth)			{
+		int[] widths;
+		try {
+			widths = getKnownWidths();
+		} catch (IOException e) {
+			throw new ThumbnailException("Could not find a fallback thumbnail for image" + id, e);
+		}
+
+		// Order the widths so that the closest to maxWidth comes first, preferring larger images on ties
+		List<Integer> availableWidths = new ArrayList<>(widths.length);
+		int insertion = Arrays.binarySearch(widths, maxWidth);
+		int larger = insertion >= 0 ? insertion : -insertion - 1;
+		int smaller = larger - 1;
+		while (smaller >= 0 || larger < widths.length) {
+			if (larger < widths.length
+					&& (smaller < 0 || widths[larger] - maxWidth <= maxWidth - widths[smaller])) {
+				availableWidths.add(widths[larger++]);
+			} else {
+				availableWidths.add(widths[smaller--]);
+			}
+		}
+
+		LOGGER.trace("Found the following possible thumbnail sizes: {}", availableWidths);
+
+		for (int width : availableWidths) {
+			ImageRetrievalResponse cached = getCachedThumbnail(width, id);
+			if (cached != null) {
+				LOGGER.debug("Found a fallback thumbnail for image {} at size {} instead of size {}", id, width,
+						maxWidth);
+				recordAccess(width, id);
+				metrics.fallbackServed(maxWidth);
+				cached.setExact(false);
+				return cached;
+			}
+		}
+
+		// If all else fails, abort
+		metrics.overload(maxWidth);
+		throw new ThumbnailGenerationOverload("Could not find a fallback thumbnail for image" + id);
+	}
+
+	/**
+	 * Gets the widths for which a thumbnail directory exists. The directory is only listed once, the widths are then
+	 * kept up to date as new directories are created.
+	 *
+	 * @return The sorted widths.
+	 * @throws IOException If listing the thumbnail directory fails.
+	 */
+	private int[] getKnownWidths() throws IOException {
+		int[] widths = knownWidths;
+		if (widths != null) {
+			return widths;
+		}
+
+		widths = ThumbnailFiles.listWidthDirectories(thumbnailDirectory).stream()
+				.mapToInt(ThumbnailFiles::getWidth)
+				.sorted()
+				.toArray();
+		synchronized (this) {
+			// Widths may have been added while listing
+			for (int width : knownWidths == null ? new int[0] : knownWidths) {
+				widths = addWidth(widths, width);
+			}
+			knownWidths = widths;
+		}
+		return widths;
+	}
+
+	private synchronized void addKnownWidth(int width) {
+		if (knownWidths != null) {
+			knownWidths = addWidth(knownWidths, width);
+		}
+	}
+
+	private static int[] addWidth(int[] widths, int width) {
+		int insertion = Arrays.binarySearch(widths, width);
+		if (insertion >= 0) {
+			return widths;
+		}
+		insertion = -insertion - 1;
+		int[] newWidths = new int[widths.length + 1];
+		System.arraycopy(widths, 0, newWidths, 0, insertion);
+		newWidths[insertion] = width;
+		System.arraycopy(widths, insertion, newWidths, insertion + 1, widths.length - insertion);
+		return newWidths;
+	}
+
+	private ImageRetrievalResponse generateThumbnail(PendingThumbnail pending) {
+		long id = pending.key.id();
+		int maxWidth = pending.key.width();
+
+		/*
+		If the task was submitted but all requests timed out, just complete the task without doing anything.
+		It fails rather than completing with no thumbnail, so that a request joining it in the meantime falls back
+		to another thumbnail.
+		 */
+		if (pending.isExpired()) {
+			LOGGER.debug("Discarded thubmnail generation for image {} at width {}: "
+					+ "the requests timed out in the meantime ({} seconds ago)",
+					id, maxWidth, (System.currentTimeMillis() - pending.deadline) / 1000);
+			throw new CancellationException("Discarded the generation of the thumbnail for image " + id
+					+ " at width " + maxWidth + ", all requests timed out");
+		}
+
+		// A previous generation may have completed between the cache check and the submission of this one
+		ImageRetrievalResponse cached = getCachedThumbnail(maxWidth, id);
+		if (cached != null && !(sourceValidation && isStale(cached, id, maxWidth, pending.image))) {
+			checkPreview(cached, id, maxWidth);
+			return cached;
+		}
+
+		createDirectoryBySize(id, maxWidth);
+
+		GenerationLocks locks = generationLocks;
+		if (locks == null) {
+			return resizeThumbnail(pending, null);
+		}
+		try (GenerationLocks.Lock lock = acquireGenerationLock(locks, pending)) {
+			// Another process may have generated the thumbnail while this one was waiting for the lock
+			cached = diskStore.find(id, maxWidth);
+			if (cached != null && !(sourceValidation && isStale(cached, id, maxWidth, pending.image))) {
+				LOGGER.debug("The thumbnail for image {} at width {} was generated by another process", id, maxWidth);
+				return cached;
+			}
+			return resizeThumbnail(pending, lock);
+		}
+	}
+
+	/**
+	 * Tries to take the generation lock of a thumbnail.
+	 *
+	 * @return The lock, or <code>null</code> if the lock file couldn't be created, in which case the thumbnail is
+	 *         generated anyway.
+	 * @throws GenerationLockedException If another process holds the lock.
+	 */
+	private GenerationLocks.Lock acquireGenerationLock(GenerationLocks locks, PendingThumbnail pending) {
+		long id = pending.key.id();
+		int width = pending.key.width();
+		GenerationLocks.Lock lock;
+		try {
+			lock = locks.tryAcquire(id, width);
+		} catch (IOException e) {
+			LOGGER.warn("Failed to lock the generation of the thumbnail for image {} at width {}: {}", id, width,
+					e.getMessage());
+			return null;
+		}
+		if (lock == null) {
+			throw new GenerationLockedException();
+		}
+		return lock;
+	}
+
+	/**
+	 * Submits a generation again once the lock held by another process may have been released. The generation thread
+	 * is not kept waiting in the meantime. The generation is abandoned once all requests for it have timed out.
+	 */
+	private void retryWhenUnlocked(PendingThumbnail pending) {
+		LOGGER.debug("Another process is generating the thumbnail for image {} at width {}, checking again in {}ms",
+				pending.key.id(), pending.key.width(), LOCK_POLL_MILLIS);
+		ScheduledExecutorService poller;
+		synchronized (this) {
+			poller = lockPoller;
+		}
+		if (poller.isShutdown()) {
+			inFlightGenerations.remove(pending.key, pending);
+			pending.result.completeExceptionally(new RejectedExecutionException("The thumbnail service was shut down"));
+			return;
+		}
+		poller.schedule(() -> {
+			try {
+				pending.checkDeadline();
+				submitGeneration(pending);
+			} catch (ThumbnailException e) {
+				inFlightGenerations.remove(pending.key, pending);
+				pending.result.completeExceptionally(e);
+			} catch (RejectedExecutionException e) {
+				LOGGER.debug("Could not submit the generation of the thumbnail for image {} at width {} again: {}",
+						pending.key.id(), pending.key.width(), e.getMessage());
+			}
+		}, LOCK_POLL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Generates a thumbnail, along with its siblings.
+	 *
+	 * @param lock The generation lock, to refresh as the generation makes progress, or <code>null</code> if there is
+	 *        none.
+	 */
+	private ImageRetrievalResponse resizeThumbnail(PendingThumbnail pending, GenerationLocks.Lock lock) {
+		long id = pending.key.id();
+		int maxWidth = pending.key.width();
+
+		String hash = getContentHash(id, pending.image);
+		if (hash != null) {
+			ImageRetrievalResponse shared = linkSharedThumbnail(hash, id, maxWidth, pending.image);
+			if (shared != null) {
+				return shared;
+			}
+		}
+
+		List<PendingThumbnail> claimed = claimSiblings(pending);
+		List<PendingThumbnail> siblings = hash == null ? claimed : linkSharedSiblings(hash, claimed, pending.image);
+		pending.siblings = siblings;
+		int[] widths = IntStream.concat(IntStream.of(maxWidth), siblings.stream().mapToInt(p -> p.key.width()))
+				.toArray();
+
+		ResizeQuality quality = fastPreviews ? ResizeQuality.PREVIEW : ResizeQuality.HIGH;
+		MemoryBudget budget = memoryBudget;
+		int acquiredPermits = 0;
+		try {
+			// Wait until there is enough memory left in the budget to decode the image, without letting the locks expire
+			if (budget != null) {
+				acquiredPermits = acquireMemory(budget, pending.imageDimensions, widths,
+						() -> refreshLocks(lock, siblings));
+				// Waiting for memory may have taken a while
+				pending.checkDeadline();
+			}
+
+			logThumbnailExecutorStats();
+
+			// Taken before reading the image, so that a replacement during the generation is detected later
+			SourceFingerprint fingerprint = sourceValidation ? SourceFingerprint.of(pending.image) : null;
+			ThumbnailMetrics currentMetrics = metrics;
+			long time = System.nanoTime();
+			Map<Integer, Path> outputs = ImageUtils.resize(pending.image, widths,
+					(w, fmt) -> diskStore.getFile(id, w, fmt),
+					new ResizeObserver() {
+						@Override
+						public void onDecoded(long nanos) {
+							currentMetrics.decode(nanos);
+							pending.checkDeadline();
+							refreshLocks(lock, siblings);
+						}
+
+						@Override
+						public void onResized(int width, long nanos) {
+							currentMetrics.resize(nanos);
+							pending.checkDeadline();
+							refreshLocks(lock, siblings);
+						}
+
+						@Override
+						public void onEncoded(int width, long nanos) {
+							currentMetrics.encode(nanos);
+						}
+					}, quality);
+			long generationNanos = System.nanoTime() - time;
+			currentMetrics.generation(generationNanos);
+			recordGenerationTime(generationNanos);
+			recentGenerationCount.increment();
+			recentGenerationNanos.add(generationNanos);
+			for (Map.Entry<Integer, Path> output : outputs.entrySet()) {
+				diskStore.add(id, output.getKey(), output.getValue());
+				if (fingerprint != null) {
+					recordFingerprint(id, output.getKey(), fingerprint);
+					// A stale thumbnail may have been stored in another format
+					for (ImageOutputFormat format : ImageOutputFormat.values()) {
+						Path other = diskStore.getFile(id, output.getKey(), format);
+						if (!other.equals(output.getValue())) {
+							FileUtils.deleteQuietly(other);
+						}
+					}
+				}
+			}
+			boolean preview = quality == ResizeQuality.PREVIEW;
+			if (hash != null && !preview) {
+				outputs.forEach((width, output) -> publishSharedThumbnail(hash, width, output));
+			}
+			if (preview) {
+				for (int width : outputs.keySet()) {
+					markPreview(id, width, pending.image);
+				}
+				schedulePreviewUpgrade(id, pending.image, widths);
+			} else {
+				outputs.keySet().stream().filter(width -> previews.containsKey(new ThumbnailKey(id, width)))
+						.forEach(width -> removePreview(id, width));
+			}
+			for (PendingThumbnail sibling : siblings) {
+				ImageRetrievalResponse siblingResponse = new ImageRetrievalResponse(outputs.get(sibling.key.width()));
+				siblingResponse.setExact(!preview);
+				inFlightGenerations.remove(sibling.key, sibling);
+				sibling.result.complete(siblingResponse);
+			}
+			ImageRetrievalResponse response = new ImageRetrievalResponse(outputs.get(maxWidth));
+			response.setExact(!preview);
+			return response;
+		} catch (IOException e) {
+			throw new ThumbnailException("I/O error while writing the thumbnail", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ThumbnailException("Interrupted while waiting for memory to generate a thumbnail", e);
+		} finally {
+			if (acquiredPermits > 0) {
+				budget.semaphore().release(acquiredPermits);
+			}
+			for (PendingThumbnail sibling : siblings) {
+				inFlightGenerations.remove(sibling.key, sibling);
+				sibling.result.completeExceptionally(
+						new ThumbnailException("Failed to generate the thumbnail for image " + id));
+				if (sibling.lock != null) {
+					sibling.lock.close();
+				}
+			}
+		}
+	}
+
+	private static void refreshLocks(GenerationLocks.Lock lock, List<PendingThumbnail> siblings) {
+		if (lock != null) {
+			lock.refresh();
+		}
+		for (PendingThumbnail sibling : siblings) {
+			if (sibling.lock != null) {
+				sibling.lock.refresh();
+			}
+		}
+	}
+
+	/**
+	 * Gets the hash of the contents of an original image, if thumbnails are deduplicated.
+	 *
+	 * @return The hash, or <code>null</code> if thumbnails are not deduplicated or the image couldn't be hashed.
+	 */
+	private String getContentHash(long id, Path image) {
+		ContentHashes hashes = contentHashes;
+		if (hashes == null) {
+			return null;
+		}
+		try {
+			return hashes.getHash(id, image);
+		} catch (IOException e) {
+			LOGGER.debug("Could not hash image {}, its thumbnails won't be shared: {}", id, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Uses the thumbnail generated for another image with the same contents, if any.
+	 *
+	 * @return The thumbnail, or <code>null</code> if it must be generated.
+	 */
+	private ImageRetrievalResponse linkSharedThumbnail(String hash, long id, int width, Path image) {
+		try {
+			ImageRetrievalResponse shared = diskStore.linkContent(hash, id, width);
+			if (shared != null) {
+				if (sourceValidation) {
+					recordFingerprint(id, width, SourceFingerprint.of(image));
+				}
+				LOGGER.debug("Shared the thumbnail of content {} at width {} with image {}", hash, width, id);
+			}
+			return shared;
+		} catch (IOException e) {
+			LOGGER.debug("Could not share the thumbnail of content {} at width {} with image {}: {}", hash, width, id,
+					e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Uses the thumbnails generated for another image with the same contents for the siblings, if any, and completes
+	 * their generations.
+	 *
+	 * @return The siblings that must still be generated.
+	 */
+	private List<PendingThumbnail> linkSharedSiblings(String hash, List<PendingThumbnail> siblings, Path image) {
+		List<PendingThumbnail> remaining = new ArrayList<>(siblings.size());
+		for (PendingThumbnail sibling : siblings) {
+			ImageRetrievalResponse shared = linkSharedThumbnail(hash, sibling.key.id(), sibling.key.width(), image);
+			if (shared == null) {
+				remaining.add(sibling);
+				continue;
+			}
+			inFlightGenerations.remove(sibling.key, sibling);
+			sibling.result.complete(shared);
+			if (sibling.lock != null) {
+				sibling.lock.close();
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Publishes a thumbnail for other images with the same contents, or replaces it with the thumbnail that was
+	 * already published for them.
+	 */
+	private void publishSharedThumbnail(String hash, int width, Path file) {
+		try {
+			diskStore.publishContent(hash, width, file);
+		} catch (IOException e) {
+			LOGGER.debug("Could not share the thumbnail {}: {}", file, e.getMessage());
+		}
+	}
+
+	/**
+	 * Waits until there is enough memory left in the budget to resize an image.
+	 *
+	 * @param whileWaiting Called at regular intervals while waiting.
+	 * @return The number of acquired permits, to release once the resize is complete.
+	 */
+	private static int acquireMemory(MemoryBudget budget, Dimension imageDimensions, int[] widths,
+			Runnable whileWaiting) throws InterruptedException {
+		int permits = budget.getPermits(imageDimensions, IntStream.of(widths).max().getAsInt());
+		while (!budget.semaphore().tryAcquire(permits, LOCK_REFRESH_MILLIS, TimeUnit.MILLISECONDS)) {
+			whileWaiting.run();
+		}
+		return permits;
+	}
+
+	/**
+	 * Flags a cached thumbnail as inexact if it is a preview, and makes sure that it will be upgraded.
+	 */
+	private void checkPreview(ImageRetrievalResponse cached, long id, int width) {
+		Path image = previews.get(new ThumbnailKey(id, width));
+		if (image != null) {
+			cached.setExact(false);
+			schedulePreviewUpgrade(id, image, new int[] { width });
+		}
+	}
+
+	private void schedulePreviewUpgrade(long id, Path image, int[] widths) {
+		int[] toUpgrade = IntStream.of(widths).filter(w -> upgradingPreviews.add(new ThumbnailKey(id, w))).toArray();
+		if (toUpgrade.length == 0) {
+			return;
+		}
+
+		try {
+			executor.submit(new ThumbnailExecutor.PrioritizedCallable<>(ThumbnailPriority.BACKGROUND, () -> {
+				try {
+					upgradePreviews(id, image, toUpgrade);
+				} catch (IOException | RuntimeException e) {
+					LOGGER.warn("Failed to upgrade the previews for image {}: {}", id, e.getMessage());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					IntStream.of(toUpgrade).forEach(w -> upgradingPreviews.remove(new ThumbnailKey(id, w)));
+				}
+				return null;
+			}));
+		} catch (RejectedExecutionException e) {
+			LOGGER.debug("Could not schedule the upgrade of the previews for image {}, will retry on the next request",
+					id);
+			IntStream.of(toUpgrade).forEach(w -> upgradingPreviews.remove(new ThumbnailKey(id, w)));
+		}
+	}
+
+	/**
+	 * Records that a thumbnail is a preview, in memory and in the thumbnail directory so that it is still upgraded
+	 * after a restart.
+	 */
+	private void markPreview(long id, int width, Path image) {
+		previews.put(new ThumbnailKey(id, width), image);
+		try {
+			diskStore.setPreview(id, width, image);
+		} catch (IOException e) {
+			LOGGER.debug("Could not mark the thumbnail for image {} at width {} as a preview: {}", id, width,
+					e.getMessage());
+		}
+	}
+
+	private void removePreview(long id, int width) {
+		previews.remove(new ThumbnailKey(id, width));
+		diskStore.clearPreview(id, width);
+	}
+
+	/**
+	 * Replaces previews with high quality thumbnails. The previews can be served until the upgrade is complete.
+	 */
+	private void upgradePreviews(long id, Path image, int[] widths) throws IOException, InterruptedException {
+		Map<Integer, Path> previewFiles = new TreeMap<>();
+		for (int width : widths) {
+			ImageRetrievalResponse cached = diskStore.get(id, width);
+			if (cached == null) {
+				// The preview was evicted in the meantime
+				removePreview(id, width);
+			} else {
+				previewFiles.put(width, cached.getFile().get());
+			}
+		}
+		if (previewFiles.isEmpty()) {
+			return;
+		}
+
+		int[] remaining = previewFiles.keySet().stream().mapToInt(Integer::intValue).toArray();
+		MemoryBudget budget = memoryBudget;
+		int acquiredPermits = 0;
+		try {
+			if (budget != null) {
+				acquiredPermits = acquireMemory(budget, getImageInfo(image).getDimensions(), remaining, () -> {
+				});
+			}
+
+			SourceFingerprint fingerprint = sourceValidation ? SourceFingerprint.of(image) : null;
+			String hash = getContentHash(id, image);
+			long time = System.nanoTime();
+			// Thumbnails are written atomically, so the previews can be replaced in place
+			Map<Integer, Path> outputs = ImageUtils.resize(image, remaining, (w, fmt) -> diskStore.getFile(id, w, fmt),
+					ResizeObserver.NONE, ResizeQuality.HIGH);
+			for (Map.Entry<Integer, Path> output : outputs.entrySet()) {
+				int width = output.getKey();
+				Path target = output.getValue();
+				Path previewFile = previewFiles.get(width);
+				if (!previewFile.equals(target)) {
+					// The format changed
+					FileUtils.deleteQuietly(previewFile);
+				}
+				diskStore.add(id, width, target);
+				if (fingerprint != null) {
+					recordFingerprint(id, width, fingerprint);
+				}
+				if (hash != null) {
+					publishSharedThumbnail(hash, width, target);
+				}
+				removePreview(id, width);
+				ThumbnailStore hot = hotStore;
+				if (hot != null) {
+					hot.remove(id, width);
+				}
+			}
+			LOGGER.debug("Upgraded {} previews for image {} in {}ms", outputs.size(), id,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - time));
+		} finally {
+			if (acquiredPermits > 0) {
+				budget.semaphore().release(acquiredPermits);
+			}
+		}
+	}
+
+	/**
+	 * Creates the directory where the thumbnail of an image will be stored, if needed.
+	 */
+	private void createDirectoryBySize(long id, int width) {
+		Path directoryBySize = diskStore.getFile(id, width, ImageOutputFormat.JPG).getParent();
+		if (!Files.isDirectory(directoryBySize)) {
+			try {
+				Files.createDirectories(directoryBySize);
+			} catch (IOException e) {
+				throw new ThumbnailException("I/O error while creating thumbnail directory", e);
+			}
+			LOGGER.debug("Creating thumbnail directory: {}", directoryBySize);
+		} else {
+			LOGGER.trace("Thumbnail directory exists: {}", directoryBySize);
+		}
+		// The directory may also have been created by someone else since we listed them
+		addKnownWidth(width);
+	}
+
+	/**
+	 * Finds the sibling widths that should be generated along with a thumbnail, and registers them as in progress so
+	 * that requests for them wait for this generation.
+	 *
+	 * @param pending The requested generation.
+	 * @return The generations of the siblings. They must be completed by the caller.
+	 */
+	private List<PendingThumbnail> claimSiblings(PendingThumbnail pending) {
+		int maxWidth = pending.key.width();
+		int[] widths = siblingWidths;
+		if (Arrays.binarySearch(widths, maxWidth) < 0) {
+			return List.of();
+		}
+
+		List<PendingThumbnail> siblings = new ArrayList<>();
+		for (int width : widths) {
+			// Don't generate thumbnails that would be larger than the original
+			if (width == maxWidth || width >= pending.imageDimensions.width) {
+				continue;
+			}
+			if (getCachedThumbnail(width, pending.key.id()) != null) {
+				continue;
+			}
+			GenerationLocks.Lock siblingLock = null;
+			GenerationLocks locks = generationLocks;
+			if (locks != null) {
+				try {
+					siblingLock = locks.tryAcquire(pending.key.id(), width);
+				} catch (IOException e) {
+					LOGGER.debug("Failed to lock the generation of the thumbnail for image {} at width {}: {}",
+							pending.key.id(), width, e.getMessage());
+					continue;
+				}
+				if (siblingLock == null) {
+					// Leave it to the other process that is generating it
+					continue;
+				}
+			}
+			ThumbnailKey key = new ThumbnailKey(pending.key.id(), width);
+			PendingThumbnail sibling = new PendingThumbnail(key, pending.image, pending.imageDimensions,
+					pending.priority, pending.client, pending.deadline);
+			sibling.lock = siblingLock;
+			if (inFlightGenerations.putIfAbsent(key, sibling) == null) {
+				siblings.add(sibling);
+			} else if (siblingLock != null) {
+				siblingLock.close();
+			}
+		}
+
+		try {
+			for (PendingThumbnail sibling : siblings) {
+				createDirectoryBySize(sibling.key.id(), sibling.key.width());
+			}
+		} catch (ThumbnailException e) {
+			for (PendingThumbnail sibling : siblings) {
+				inFlightGenerations.remove(sibling.key, sibling);
+				sibling.result.completeExceptionally(e);
+				if (sibling.lock != null) {
+					sibling.lock.close();
+				}
+			}
+			throw e;
+		}
+
+		if (!siblings.isEmpty()) {
+			LOGGER.debug("Generating thumbnails for image {} at widths {} along with width {}", pending.key.id(),
+					siblings.stream().map(p -> p.key.width()).collect(Collectors.toList()), maxWidth);
+		}
+		return siblings;
+	}
+
+	/**
+	 * Gets a snapshot of the state of the thumbnail generation executor.
+	 *
+	 * @return The executor statistics.
+	 */
+	public ThumbnailExecutorStats getExecutorStats() {
+		return new ThumbnailExecutorStats(executor.getPoolSize(), executor.getMaximumPoolSize(),
+				executor.getActiveCount(), executor.getQueue().size());
+	}
+
 	private void logThumbnailExecutorStats() {
 		if (LOGGER.isTraceEnabled()) {
 			LOGGER.trace("Thumbnail executor stats: {} active, {} in pool (max: {}), {} queued",
@@ -0,0 +1,102 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded mapping from image IDs to the hash of the contents of the original images, so that identical originals can
+ * share their thumbnails.
+ * <p>
+ * Hashes are truncated SHA-256 digests of 128 bits, stored as two <code>long</code>s. Like in the
+ * {@link ImageMetadataCache}, entries are only valid as long as the {@link SourceFingerprint fingerprint} of the
+ * image doesn't change, and the least recently used entries are evicted first.
+ * </p>
+ */
+final class ContentHashes {
+	private static final String ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A cached hash.
+	 *
+	 * @param fingerprint The fingerprint of the image when it was hashed.
+	 * @param high The first 64 bits of the hash.
+	 * @param low The next 64 bits of the hash.
+	 */
+	private record Entry(SourceFingerprint fingerprint, long high, long low) {
+	}
+
+	private final Map<Long, Entry> entries;
+
+	/**
+	 * Creates the mapping.
+	 *
+	 * @param maxEntries The maximum number of hashes to keep in memory.
+	 */
+	ContentHashes(int maxEntries) {
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the hash of the contents of an image, from the mapping if it is still valid.
+	 *
+	 * @param id The ID of the image.
+	 * @param image The image.
+	 * @return The hash, as 32 hexadecimal characters.
+	 * @throws IOException If reading the image fails.
+	 */
+	String getHash(long id, Path image) throws IOException {
+		SourceFingerprint fingerprint = SourceFingerprint.of(image);
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(id);
+		}
+		if (entry == null || !entry.fingerprint().equals(fingerprint)) {
+			ByteBuffer digest = ByteBuffer.wrap(digest(image));
+			entry = new Entry(fingerprint, digest.getLong(), digest.getLong());
+			synchronized (this) {
+				entries.put(id, entry);
+			}
+		}
+		return String.format("%016x%016x", entry.high(), entry.low());
+	}
+
+	/**
+	 * Gets the number of cached hashes.
+	 *
+	 * @return The number of hashes.
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	private static byte[] digest(Path image) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not supported by this JVM", e);
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(image)) {
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return digest.digest();
+	}
+}
@@ -0,0 +1,542 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.the4thlaw.commons.utils.image.ImageUtils.ImageOutputFormat;
+import org.the4thlaw.commons.utils.io.FileUtils;
+import org.the4thlaw.commons.utils.io.FilenameUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The store of thumbnails in the thumbnail directory, where they are organised in a directory per width, according to
+ * a {@link ThumbnailLayout}.
+ * <p>
+ * The {@link SourceFingerprint fingerprint} of the original image can be recorded next to each thumbnail, in a file
+ * named after the ID of the image with the <code>.src</code> extension. Likewise, thumbnails that are fast previews
+ * are marked by a file with the <code>.preview</code> extension, which holds the path of their original image.
+ * </p>
+ * <p>
+ * Thumbnails can also be published in a content directory in each width directory, named after the hash of their
+ * original image, so that images with identical contents can share them. Shared thumbnails are hard links, or copies
+ * if the file system doesn't support links. Content directories where copies were made are marked by a
+ * <code>.copied</code> file, and are never purged.
+ * </p>
+ */
+final class DiskThumbnailStore implements ThumbnailStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DiskThumbnailStore.class);
+	private static final String FINGERPRINT_EXTENSION = ".src";
+	private static final String PREVIEW_EXTENSION = ".preview";
+	private static final String CONTENT_DIRECTORY = "content";
+	/**
+	 * Marks the content directories where shared thumbnails had to be copied, so that their number of links can't
+	 * tell whether they are used.
+	 */
+	private static final String COPIED_MARKER = ".copied";
+
+	private final Path thumbnailDirectory;
+	private final Supplier<ThumbnailIndex> index;
+	private volatile ThumbnailLayout layout = ThumbnailLayout.FLAT;
+	/** The layout being migrated from, or <code>null</code> if no migration is in progress. */
+	private volatile ThumbnailLayout previousLayout;
+
+	/**
+	 * Creates the store.
+	 *
+	 * @param thumbnailDirectory The directory where thumbnails are stored.
+	 * @param index Gives the index of the thumbnails, if any.
+	 */
+	DiskThumbnailStore(Path thumbnailDirectory, Supplier<ThumbnailIndex> index) {
+		this.thumbnailDirectory = thumbnailDirectory;
+		this.index = index;
+	}
+
+	/**
+	 * Gets the directory holding the thumbnails of a given width.
+	 *
+	 * @param width The width.
+	 * @return The directory.
+	 */
+	Path getDirectory(int width) {
+		return thumbnailDirectory.resolve(width + "w");
+	}
+
+	/**
+	 * Gets the path of a thumbnail.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @param format The format of the thumbnail.
+	 * @return The path.
+	 */
+	Path getFile(long id, int width, ImageOutputFormat format) {
+		return getFile(id, width, format, layout);
+	}
+
+	private Path getFile(long id, int width, ImageOutputFormat format, ThumbnailLayout fileLayout) {
+		return fileLayout.resolveDirectory(getDirectory(width), id).resolve(id + "." + format.getFileExtension());
+	}
+
+	private Path getFingerprintFile(long id, int width, ThumbnailLayout fileLayout) {
+		return fileLayout.resolveDirectory(getDirectory(width), id).resolve(id + FINGERPRINT_EXTENSION);
+	}
+
+	private Path getPreviewFile(long id, int width, ThumbnailLayout fileLayout) {
+		return fileLayout.resolveDirectory(getDirectory(width), id).resolve(id + PREVIEW_EXTENSION);
+	}
+
+	private Path getContentFile(String hash, int width, ImageOutputFormat format) {
+		return getDirectory(width).resolve(CONTENT_DIRECTORY).resolve(hash.substring(0, 2))
+				.resolve(hash + "." + format.getFileExtension());
+	}
+
+	/**
+	 * Shares the thumbnail published for a given content with an image, replacing its current thumbnail if any.
+	 *
+	 * @param hash The hash of the contents of the image.
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @return The thumbnail of the image, or <code>null</code> if no thumbnail was published for that content.
+	 * @throws IOException If sharing the thumbnail fails.
+	 */
+	ImageRetrievalResponse linkContent(String hash, long id, int width) throws IOException {
+		for (ImageOutputFormat format : ImageOutputFormat.values()) {
+			Path content = getContentFile(hash, width, format);
+			if (!Files.exists(content)) {
+				continue;
+			}
+			Path target = getFile(id, width, format);
+			Files.createDirectories(target.getParent());
+			if (!link(content, target)) {
+				markCopied(width);
+			}
+			for (ImageOutputFormat otherFormat : ImageOutputFormat.values()) {
+				if (otherFormat != format) {
+					FileUtils.deleteQuietly(getFile(id, width, otherFormat));
+				}
+			}
+			add(id, width, target);
+			return new ImageRetrievalResponse(target);
+		}
+		return null;
+	}
+
+	/**
+	 * Publishes a thumbnail so that images with the same contents can share it. If a thumbnail was already published
+	 * for that content, the thumbnail is replaced by the published one instead, so that it is only stored once.
+	 *
+	 * @param hash The hash of the contents of the image.
+	 * @param width The width of the thumbnail.
+	 * @param file The thumbnail file.
+	 * @throws IOException If publishing the thumbnail fails.
+	 */
+	void publishContent(String hash, int width, Path file) throws IOException {
+		Path content = getContentFile(hash, width, getFormat(file.getFileName().toString()));
+		boolean linked;
+		if (!Files.exists(content)) {
+			Files.createDirectories(content.getParent());
+			linked = link(file, content);
+		} else if (!Files.isSameFile(content, file)) {
+			linked = link(content, file);
+		} else {
+			return;
+		}
+		if (!linked) {
+			markCopied(width);
+		}
+	}
+
+	private void markCopied(int width) throws IOException {
+		Path marker = getDirectory(width).resolve(CONTENT_DIRECTORY).resolve(COPIED_MARKER);
+		if (!Files.exists(marker)) {
+			LOGGER.debug("Shared thumbnails at width {} are copies, they will never be purged", width);
+			Files.createDirectories(marker.getParent());
+			try {
+				Files.createFile(marker);
+			} catch (FileAlreadyExistsException e) {
+				// Marked concurrently
+			}
+		}
+	}
+
+	/**
+	 * Deletes the published thumbnails that are not shared with any image anymore. This relies on the number of links
+	 * to each file, and is thus only possible on file systems that report it, and for widths where no shared
+	 * thumbnail had to be copied.
+	 *
+	 * @return The number of deleted thumbnails.
+	 * @throws IOException If listing the thumbnails fails.
+	 */
+	int purgeUnusedContent() throws IOException {
+		if (!Files.isDirectory(thumbnailDirectory)) {
+			return 0;
+		}
+
+		int purged = 0;
+		for (Path widthDirectory : ThumbnailFiles.listWidthDirectories(thumbnailDirectory)) {
+			Path contentDirectory = widthDirectory.resolve(CONTENT_DIRECTORY);
+			if (!Files.isDirectory(contentDirectory)) {
+				continue;
+			}
+			if (Files.exists(contentDirectory.resolve(COPIED_MARKER))) {
+				LOGGER.debug("Not purging {}, it contains copies", contentDirectory);
+				continue;
+			}
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(contentDirectory)) {
+				// Skip the temporary files of the thumbnails being published
+				files = walk.filter(f -> Files.isRegularFile(f) && !f.getFileName().toString().startsWith("."))
+						.toList();
+			}
+			for (Path file : files) {
+				int links;
+				try {
+					links = (Integer) Files.getAttribute(file, "unix:nlink");
+				} catch (UnsupportedOperationException | IllegalArgumentException e) {
+					LOGGER.debug("The file system doesn't report the number of links, keeping all shared thumbnails");
+					return purged;
+				}
+				if (links <= 1) {
+					FileUtils.deleteQuietly(file);
+					purged++;
+				}
+			}
+		}
+		return purged;
+	}
+
+	/**
+	 * Atomically replaces a file with a hard link to another one, or a copy if links are not supported.
+	 *
+	 * @return <code>true</code> if the file was linked, <code>false</code> if it was copied.
+	 */
+	private static boolean link(Path existing, Path target) throws IOException {
+		Path temp = FileUtils.getTempSibling(target);
+		try {
+			boolean linked = true;
+			try {
+				Files.createLink(temp, existing);
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				LOGGER.trace("Could not link {} to {}, copying it instead: {}", target, existing, e.getMessage());
+				Files.copy(existing, temp);
+				linked = false;
+			}
+			FileUtils.moveAtomically(temp, target);
+			return linked;
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the fingerprint of the original image recorded for a thumbnail.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @return The fingerprint, or <code>null</code> if none was recorded.
+	 * @throws IOException If reading the fingerprint fails.
+	 */
+	SourceFingerprint getFingerprint(long id, int width) throws IOException {
+		SourceFingerprint fingerprint = readFingerprint(getFingerprintFile(id, width, layout));
+		ThumbnailLayout migratedLayout = previousLayout;
+		if (fingerprint == null && migratedLayout != null) {
+			fingerprint = readFingerprint(getFingerprintFile(id, width, migratedLayout));
+		}
+		return fingerprint;
+	}
+
+	private static SourceFingerprint readFingerprint(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+			return new SourceFingerprint(in.readLong(), in.readLong());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Records the fingerprint of the original image of a thumbnail.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @param fingerprint The fingerprint.
+	 * @throws IOException If writing the fingerprint fails.
+	 */
+	void setFingerprint(long id, int width, SourceFingerprint fingerprint) throws IOException {
+		Path target = getFingerprintFile(id, width, layout);
+		Path temp = FileUtils.getTempSibling(target);
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+				out.writeLong(fingerprint.size());
+				out.writeLong(fingerprint.lastModified());
+			}
+			FileUtils.moveAtomically(temp, target);
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Marks a thumbnail as a preview, to be upgraded to a high quality thumbnail.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @param image The original image of the thumbnail.
+	 * @throws IOException If writing the marker fails.
+	 */
+	void setPreview(long id, int width, Path image) throws IOException {
+		Path target = getPreviewFile(id, width, layout);
+		Path temp = FileUtils.getTempSibling(target);
+		try {
+			Files.writeString(temp, image.toAbsolutePath().toString(), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE);
+			FileUtils.moveAtomically(temp, target);
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes the preview marker of a thumbnail, once it was upgraded.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 */
+	void clearPreview(long id, int width) {
+		FileUtils.deleteQuietly(getPreviewFile(id, width, layout));
+		ThumbnailLayout migratedLayout = previousLayout;
+		if (migratedLayout != null) {
+			FileUtils.deleteQuietly(getPreviewFile(id, width, migratedLayout));
+		}
+	}
+
+	/**
+	 * Finds the thumbnails that are marked as previews.
+	 *
+	 * @return The previews, with the path of their original image.
+	 * @throws IOException If scanning the thumbnail directory fails.
+	 */
+	Map<ThumbnailKey, Path> findPreviews() throws IOException {
+		Map<ThumbnailKey, Path> previews = new HashMap<>();
+		if (!Files.isDirectory(thumbnailDirectory)) {
+			return previews;
+		}
+		for (Path widthDirectory : ThumbnailFiles.listWidthDirectories(thumbnailDirectory)) {
+			int width = ThumbnailFiles.getWidth(widthDirectory);
+			ThumbnailFiles.scanWidthDirectory(widthDirectory, (id, format, file) -> {
+				try {
+					Path marker = file.resolveSibling(id + PREVIEW_EXTENSION);
+					previews.put(new ThumbnailKey(id, width), Path.of(Files.readString(marker)));
+				} catch (NoSuchFileException e) {
+					// Not a preview
+				}
+			});
+		}
+		return previews;
+	}
+
+	/**
+	 * Sets the layout of the thumbnail directory, without moving the existing thumbnails.
+	 *
+	 * @param layout The layout.
+	 */
+	void setLayout(ThumbnailLayout layout) {
+		this.layout = layout;
+	}
+
+	/**
+	 * Moves the existing thumbnails to a new layout. Width directories are migrated in parallel. Until the migration
+	 * is complete, thumbnails are looked up in both layouts.
+	 *
+	 * @param target The new layout.
+	 * @throws IOException If moving the thumbnails fails.
+	 */
+	void migrate(ThumbnailLayout target) throws IOException {
+		ThumbnailLayout source = layout;
+		previousLayout = source;
+		layout = target;
+		try {
+			if (!Files.isDirectory(thumbnailDirectory)) {
+				return;
+			}
+
+			long time = System.currentTimeMillis();
+			AtomicInteger moved = new AtomicInteger();
+			List<Path> widthDirectories = ThumbnailFiles.listWidthDirectories(thumbnailDirectory);
+			try {
+				widthDirectories.parallelStream().forEach(dir -> migrateWidthDirectory(dir, target, moved));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			LOGGER.info("Migrated {} thumbnails from the {} layout to the {} layout in {}ms", moved.get(), source,
+					target, System.currentTimeMillis() - time);
+		} finally {
+			previousLayout = null;
+		}
+	}
+
+	private void migrateWidthDirectory(Path widthDirectory, ThumbnailLayout target, AtomicInteger moved) {
+		try {
+			// Moving thumbnails to the directory being scanned is fine: they are skipped if they are visited again
+			ThumbnailFiles.scanWidthDirectory(widthDirectory, (id, format, file) -> {
+				Path destination = target.resolveDirectory(widthDirectory, id).resolve(file.getFileName());
+				if (!destination.equals(file)) {
+					Files.createDirectories(destination.getParent());
+					Files.move(file, destination, StandardCopyOption.REPLACE_EXISTING);
+					moved.incrementAndGet();
+					for (String extension : List.of(FINGERPRINT_EXTENSION, PREVIEW_EXTENSION)) {
+						Path sidecar = file.resolveSibling(id + extension);
+						if (Files.exists(sidecar)) {
+							Files.move(sidecar, destination.resolveSibling(sidecar.getFileName()),
+									StandardCopyOption.REPLACE_EXISTING);
+						}
+					}
+				}
+			});
+
+			if (target == ThumbnailLayout.FLAT) {
+				try (DirectoryStream<Path> shards = Files.newDirectoryStream(widthDirectory, Files::isDirectory)) {
+					for (Path shard : shards) {
+						try {
+							Files.deleteIfExists(shard);
+						} catch (DirectoryNotEmptyException e) {
+							LOGGER.debug("Keeping {}, it contains other files", shard);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public ImageRetrievalResponse get(long id, int width) {
+		ThumbnailIndex currentIndex = index.get();
+		if (currentIndex != null && currentIndex.isLoaded()) {
+			ImageOutputFormat format = currentIndex.get(width, id);
+			if (format == null) {
+				return null;
+			}
+			Path file = getFile(id, width, format);
+			ThumbnailLayout migratedLayout = previousLayout;
+			if (migratedLayout != null && !Files.exists(file)) {
+				file = getFile(id, width, format, migratedLayout);
+			}
+			return new ImageRetrievalResponse(file);
+		}
+		return probe(id, width);
+	}
+
+	/**
+	 * Looks a thumbnail up in the thumbnail directory, even if it is not indexed, and indexes it if it is found. This
+	 * is meant for thumbnails that may have been written by other processes.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @return The thumbnail, or <code>null</code> if it doesn't exist.
+	 */
+	ImageRetrievalResponse find(long id, int width) {
+		ImageRetrievalResponse response = probe(id, width);
+		if (response != null) {
+			add(id, width, response.getFile().get());
+		}
+		return response;
+	}
+
+	private ImageRetrievalResponse probe(long id, int width) {
+		ImageRetrievalResponse response = get(id, width, layout);
+		ThumbnailLayout migratedLayout = previousLayout;
+		if (response == null && migratedLayout != null) {
+			response = get(id, width, migratedLayout);
+		}
+		return response;
+	}
+
+	private ImageRetrievalResponse get(long id, int width, ThumbnailLayout fileLayout) {
+		// Two possible formats - jpg is more likely so check it first
+		Path jpgThumb = getFile(id, width, ImageOutputFormat.JPG, fileLayout);
+		if (Files.exists(jpgThumb)) {
+			return new ImageRetrievalResponse(jpgThumb);
+		}
+		Path pngThumb = getFile(id, width, ImageOutputFormat.PNG, fileLayout);
+		if (Files.exists(pngThumb)) {
+			return new ImageRetrievalResponse(pngThumb);
+		}
+		return null;
+	}
+
+	@Override
+	public void put(long id, int width, ImageRetrievalResponse thumbnail) {
+		ImageOutputFormat format = getFormat(thumbnail.getFileName());
+		Path target = getFile(id, width, format);
+		if (!thumbnail.getFile().filter(target::equals).isPresent()) {
+			Path temp = FileUtils.getTempSibling(target);
+			try (InputStream in = thumbnail.getResource().getInputStream()) {
+				// Like generated thumbnails, publish the file atomically
+				Files.createDirectories(target.getParent());
+				Files.copy(in, temp);
+				FileUtils.moveAtomically(temp, target);
+			} catch (IOException e) {
+				FileUtils.deleteQuietly(temp);
+				throw new ThumbnailException("I/O error while storing the thumbnail for image " + id, e);
+			}
+		}
+		add(id, width, target);
+	}
+
+	/**
+	 * Registers a thumbnail that was written in its final location.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @param file The thumbnail file.
+	 */
+	void add(long id, int width, Path file) {
+		ThumbnailIndex currentIndex = index.get();
+		if (currentIndex != null) {
+			currentIndex.put(width, id, getFormat(file.getFileName().toString()));
+		}
+	}
+
+	@Override
+	public void remove(long id, int width) {
+		ThumbnailIndex currentIndex = index.get();
+		if (currentIndex != null) {
+			currentIndex.remove(width, id);
+		}
+		for (ImageOutputFormat format : ImageOutputFormat.values()) {
+			FileUtils.deleteQuietly(getFile(id, width, format));
+		}
+		FileUtils.deleteQuietly(getFingerprintFile(id, width, layout));
+		FileUtils.deleteQuietly(getPreviewFile(id, width, layout));
+	}
+
+	private static ImageOutputFormat getFormat(String fileName) {
+		return ImageOutputFormat.valueOf(FilenameUtils.getFileExtension(fileName).toUpperCase(Locale.ROOT));
+	}
+}
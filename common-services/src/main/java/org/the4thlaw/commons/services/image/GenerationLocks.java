@@ -0,0 +1,205 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.UUID;
+
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Locks on the generation of thumbnails, shared by all the processes using the same thumbnail directory.
+ * <p>
+ * Each lock is a file, created atomically, whose last modification time is refreshed while the generation is making
+ * progress. Lock files are used rather than {@link java.nio.channels.FileChannel#tryLock() file locks} because the
+ * latter are not reliable on network file systems. Locks that weren't refreshed for a while are considered stale,
+ * for example because the process holding them crashed, and can be taken over.
+ * </p>
+ * <p>
+ * Each acquisition writes a unique token to the lock file. Lock files are only removed after being atomically renamed
+ * and checked to still hold the expected token, so that a process never removes a lock that was taken over in the
+ * meantime, be it while taking over a stale lock or while releasing its own after a long pause.
+ * </p>
+ */
+final class GenerationLocks {
+	private static final Logger LOGGER = LoggerFactory.getLogger(GenerationLocks.class);
+	/** Identifies this process in the lock tokens, to help diagnosing stuck locks. */
+	private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+	private final Path lockDirectory;
+	private final long staleAfterMillis;
+
+	/**
+	 * A lock held by this process.
+	 */
+	final class Lock implements AutoCloseable {
+		private final Path file;
+		private final String token;
+
+		private Lock(Path file, String token) {
+			this.file = file;
+			this.token = token;
+		}
+
+		/**
+		 * Signals that the generation is still making progress, so that the lock doesn't become stale.
+		 */
+		void refresh() {
+			try {
+				if (!token.equals(readToken(file))) {
+					LOGGER.warn("The lock {} was taken over by another process", file);
+					return;
+				}
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			} catch (IOException e) {
+				LOGGER.debug("Failed to refresh the lock {}: {}", file, e.getMessage());
+			}
+		}
+
+		/**
+		 * Releases the lock, unless it was taken over by another process.
+		 */
+		@Override
+		public void close() {
+			if (!removeIfHeld(file, token, false)) {
+				LOGGER.warn("The lock {} was taken over by another process before being released", file);
+			}
+		}
+	}
+
+	/**
+	 * Creates the locks.
+	 *
+	 * @param lockDirectory The directory where the lock files are stored.
+	 * @param staleAfter The time after which a lock that wasn't refreshed is considered stale. It should account for
+	 *        clock differences between the hosts sharing the directory.
+	 */
+	GenerationLocks(Path lockDirectory, Duration staleAfter) {
+		this.lockDirectory = lockDirectory;
+		this.staleAfterMillis = staleAfter.toMillis();
+	}
+
+	private Path getFile(long id, int width) {
+		return lockDirectory.resolve(id + "-" + width + "w.lock");
+	}
+
+	/**
+	 * Tries to lock the generation of a thumbnail. Stale locks are taken over.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @return The lock, or <code>null</code> if another process holds it.
+	 * @throws IOException If creating the lock file fails.
+	 */
+	Lock tryAcquire(long id, int width) throws IOException {
+		Path file = getFile(id, width);
+		Files.createDirectories(lockDirectory);
+		// Two attempts: the lock may be released, or found stale, after the first one
+		for (int attempt = 0; attempt < 2; attempt++) {
+			String token = OWNER + "/" + UUID.randomUUID();
+			try {
+				Files.write(file, token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE);
+				return new Lock(file, token);
+			} catch (FileAlreadyExistsException e) {
+				try {
+					String staleToken = readToken(file);
+					long age = getAge(file);
+					if (age < staleAfterMillis) {
+						return null;
+					}
+					// The lock may be refreshed before it is claimed, which is checked again once it is
+					if (removeIfHeld(file, staleToken, true)) {
+						LOGGER.warn("Took over the stale lock {} held by {}, it was last refreshed {}ms ago", file,
+								staleToken, age);
+					}
+				} catch (NoSuchFileException released) {
+					LOGGER.trace("The lock {} was released in the meantime", file);
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String readToken(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+
+	private static long getAge(Path file) throws IOException {
+		return System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis();
+	}
+
+	/**
+	 * Removes a lock file if it holds a given token. The file is first renamed atomically, so that only one process
+	 * can claim it, and put back if it turns out to hold another token or to have been refreshed.
+	 *
+	 * @param onlyIfStale Whether to only remove the lock file if it is stale.
+	 * @return <code>true</code> if the lock file held the token and was removed.
+	 */
+	private boolean removeIfHeld(Path file, String token, boolean onlyIfStale) {
+		Path claimed = file.resolveSibling("." + file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// Released or claimed by someone else
+			return false;
+		}
+
+		boolean held;
+		try {
+			held = token.equals(readToken(claimed)) && (!onlyIfStale || getAge(claimed) >= staleAfterMillis);
+		} catch (IOException e) {
+			LOGGER.warn("Could not check the lock {}: {}", file, e.getMessage());
+			held = false;
+		}
+		if (held) {
+			FileUtils.deleteQuietly(claimed);
+			return true;
+		}
+		restore(file, claimed);
+		return false;
+	}
+
+	/**
+	 * Puts back a claimed lock file for its holder, without replacing a lock acquired in the meantime. The claimed
+	 * file is only deleted once it is put back, or replaced by a new lock, so that a lock that is still in force is
+	 * never deleted.
+	 */
+	private static void restore(Path file, Path claimed) {
+		try {
+			Files.createLink(file, claimed);
+			FileUtils.deleteQuietly(claimed);
+			return;
+		} catch (FileAlreadyExistsException e) {
+			acquiredAgain(file, claimed);
+			return;
+		} catch (UnsupportedOperationException | IOException e) {
+			LOGGER.trace("Could not link the lock {} back, moving it instead: {}", file, e.getMessage());
+		}
+
+		try {
+			Files.move(claimed, file);
+		} catch (FileAlreadyExistsException e) {
+			acquiredAgain(file, claimed);
+		} catch (IOException e) {
+			LOGGER.warn("Could not restore the lock {}, it was left in {}: {}", file, claimed, e.getMessage());
+		}
+	}
+
+	private static void acquiredAgain(Path file, Path claimed) {
+		// Its holder lost it anyway, and will notice when refreshing it
+		LOGGER.warn("Could not restore the lock {}, it was acquired again in the meantime", file);
+		FileUtils.deleteQuietly(claimed);
+	}
+}
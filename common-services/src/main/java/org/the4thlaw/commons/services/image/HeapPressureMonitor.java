@@ -0,0 +1,104 @@
+package org.the4thlaw.commons.services.image;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the occupancy of the tenured heap pools through the usage and collection usage thresholds of the JVM.
+ * <p>
+ * The thresholds are global to the JVM: setting them replaces the thresholds set by any other component, and closing
+ * the monitor disables them.
+ * </p>
+ */
+final class HeapPressureMonitor implements NotificationListener, AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(HeapPressureMonitor.class);
+	/** The fraction of the threshold under which the pressure is considered gone. */
+	private static final double RECOVERY_FACTOR = 0.9;
+
+	private final double threshold;
+	private final Runnable onPressure;
+	private final List<MemoryPoolMXBean> pools;
+
+	/**
+	 * Creates the monitor and starts watching the heap.
+	 *
+	 * @param threshold The fraction of the tenured pools above which the heap is under pressure.
+	 * @param onPressure Called when a pool crosses the threshold, on a JMX notification thread.
+	 */
+	HeapPressureMonitor(double threshold, Runnable onPressure) {
+		this.threshold = threshold;
+		this.onPressure = onPressure;
+		// Only tenured pools support usage thresholds, which is where large rasters end up anyway
+		this.pools = ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(p -> p.getType() == MemoryType.HEAP && p.isUsageThresholdSupported())
+				.filter(p -> p.getUsage().getMax() > 0)
+				.toList();
+
+		for (MemoryPoolMXBean pool : pools) {
+			long limit = getLimit(pool.getUsage());
+			pool.setUsageThreshold(limit);
+			if (pool.isCollectionUsageThresholdSupported()) {
+				pool.setCollectionUsageThreshold(limit);
+			}
+			LOGGER.debug("Watching heap pool {} above {} bytes", pool.getName(), limit);
+		}
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		String type = notification.getType();
+		if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+				|| MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+			onPressure.run();
+		}
+	}
+
+	/**
+	 * Checks whether the heap has recovered, that is to say if the tenured pools remained comfortably under the
+	 * threshold after their last collection.
+	 *
+	 * @return <code>true</code> if the heap is not under pressure anymore.
+	 */
+	boolean isRecovered() {
+		for (MemoryPoolMXBean pool : pools) {
+			MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage()
+					: pool.getUsage();
+			if (usage != null && usage.getUsed() > getLimit(usage) * RECOVERY_FACTOR) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		try {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+		} catch (ListenerNotFoundException e) {
+			LOGGER.debug("The heap pressure listener was already removed", e);
+		}
+		for (MemoryPoolMXBean pool : pools) {
+			pool.setUsageThreshold(0);
+			if (pool.isCollectionUsageThresholdSupported()) {
+				pool.setCollectionUsageThreshold(0);
+			}
+		}
+	}
+
+	private long getLimit(MemoryUsage usage) {
+		return (long) (usage.getMax() * threshold);
+	}
+}
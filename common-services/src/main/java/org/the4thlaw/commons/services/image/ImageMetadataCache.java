@@ -0,0 +1,192 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.the4thlaw.commons.utils.image.ImageInfo;
+import org.the4thlaw.commons.utils.image.ImageUtils;
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of image information, so that the headers of original images don't need to be read again each time
+ * a thumbnail is missing.
+ * <p>
+ * Entries are keyed by the absolute path of the image, and are only valid as long as the size and last modification
+ * time of the image don't change. The least recently used entries are evicted first. The cache can optionally be
+ * persisted to a file so that it survives restarts.
+ * </p>
+ */
+final class ImageMetadataCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ImageMetadataCache.class);
+	/** Magic number and version identifying the storage format. */
+	private static final int STORAGE_HEADER = 0x494D4301;
+
+	/**
+	 * A cached entry.
+	 *
+	 * @param size The size of the image when the information was read.
+	 * @param lastModified The last modification time of the image when the information was read.
+	 * @param info The image information.
+	 */
+	private record Entry(long size, long lastModified, ImageInfo info) {
+	}
+
+	private final Map<String, Entry> entries;
+	private final Path storage;
+	private boolean dirty;
+
+	/**
+	 * Creates the cache.
+	 *
+	 * @param maxEntries The maximum number of entries to keep in memory.
+	 * @param storage The file where the cache is persisted, or <code>null</code> to keep it in memory only.
+	 */
+	ImageMetadataCache(int maxEntries, Path storage) {
+		this.storage = storage;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the information about an image, from the cache if it is still valid.
+	 *
+	 * @param image The image.
+	 * @return The image information.
+	 * @throws IOException If reading the image fails.
+	 */
+	ImageInfo getImageInfo(Path image) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(image, BasicFileAttributes.class);
+		long size = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		String key = image.toAbsolutePath().toString();
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.size() == size && entry.lastModified() == lastModified) {
+				return entry.info();
+			}
+		}
+
+		ImageInfo info = ImageUtils.getImageInfo(image.toFile());
+		synchronized (this) {
+			entries.put(key, new Entry(size, lastModified, info));
+			dirty = true;
+		}
+		return info;
+	}
+
+	/**
+	 * Gets the number of cached entries.
+	 *
+	 * @return The number of entries.
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Loads the cache from its storage, if any.
+	 *
+	 * @throws IOException If reading the storage fails.
+	 */
+	void load() throws IOException {
+		if (storage == null || !Files.exists(storage)) {
+			return;
+		}
+
+		List<Map.Entry<String, Entry>> loaded = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(storage)))) {
+			if (in.readInt() != STORAGE_HEADER) {
+				LOGGER.warn("Ignoring the image metadata cache at {}, its format is not supported", storage);
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				ImageInfo info = new ImageInfo(in.readInt(), in.readInt(), in.readUTF(), in.readBoolean());
+				loaded.add(Map.entry(key, new Entry(size, lastModified, info)));
+			}
+		}
+
+		synchronized (this) {
+			// Entries are stored from the least to the most recently used, and recent entries win over stored ones
+			Map<String, Entry> current = new LinkedHashMap<>(entries);
+			entries.clear();
+			loaded.forEach(e -> entries.put(e.getKey(), e.getValue()));
+			entries.putAll(current);
+		}
+		LOGGER.debug("Loaded {} image metadata entries from {}", loaded.size(), storage);
+	}
+
+	/**
+	 * Saves the cache to its storage, if any and if it was modified since it was last saved.
+	 *
+	 * @throws IOException If writing the storage fails.
+	 */
+	void save() throws IOException {
+		if (storage == null) {
+			return;
+		}
+
+		List<Map.Entry<String, Entry>> snapshot;
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			snapshot = entries.entrySet().stream().map(e -> Map.entry(e.getKey(), e.getValue())).toList();
+			dirty = false;
+		}
+
+		Files.createDirectories(storage.getParent());
+		// Processes sharing the storage must not write to the same temporary file
+		Path temp = FileUtils.getTempSibling(storage);
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+				out.writeInt(STORAGE_HEADER);
+				out.writeInt(snapshot.size());
+				for (Map.Entry<String, Entry> e : snapshot) {
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size());
+					out.writeLong(entry.lastModified());
+					out.writeInt(entry.info().getWidth());
+					out.writeInt(entry.info().getHeight());
+					out.writeUTF(entry.info().getFormatName());
+					out.writeBoolean(entry.info().hasAlpha());
+				}
+			}
+			FileUtils.moveAtomically(temp, storage);
+		} catch (IOException e) {
+			synchronized (this) {
+				dirty = true;
+			}
+			throw e;
+		} finally {
+			FileUtils.deleteQuietly(temp);
+		}
+		LOGGER.debug("Saved {} image metadata entries to {}", snapshot.size(), storage);
+	}
+}
@@ -1,16 +1,43 @@
 package org.the4thlaw.commons.services.image;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 
 /**
  * Represents the results of the request for an image.
+ * <p>
+ * Besides the image itself, the response gives what is needed to serve it over HTTP: its size, last modification
+ * time, media type and entity tag. For files, they are read from the file system once, the first time they
+ * are needed. They can be passed to <code>WebRequest.checkNotModified(String, long)</code> so that conditional
+ * requests are answered without reading the image.
+ * </p>
  */
 public class ImageRetrievalResponse {
+	private static final String DEFAULT_MEDIA_TYPE = "application/octet-stream";
+
 	private final Path file;
+	private final byte[] content;
+	private final String fileName;
 	private boolean exact = true;
+	private long size = -1;
+	private long lastModified = -1;
+	private String eTag;
 
 	/**
 	 * Creates a response. By default, all responses are {@link #isExact() exact}
@@ -19,6 +46,36 @@ public class ImageRetrievalResponse {
 	 */
 	public ImageRetrievalResponse(Path file) {
 		this.file = file;
+		this.content = null;
+		this.fileName = file.getFileName().toString();
+	}
+
+	/**
+	 * Creates a response for an image held in memory. By default, all responses are {@link #isExact() exact}
+	 * 
+	 * @param content The contents of the image. The array is not copied and must not be modified afterwards.
+	 * @param fileName The file name of the image, used to determine its type.
+	 */
+	public ImageRetrievalResponse(byte[] content, String fileName) {
+		this(content, fileName, 0, null);
+	}
+
+	/**
+	 * Creates a response for an image held in memory, typically a copy of a file. By default, all responses are
+	 * {@link #isExact() exact}
+	 * 
+	 * @param content The contents of the image. The array is not copied and must not be modified afterwards.
+	 * @param fileName The file name of the image, used to determine its type.
+	 * @param lastModified The last modification time of the image, in milliseconds since the epoch.
+	 * @param eTag The entity tag of the image, or <code>null</code> to compute it from the contents.
+	 */
+	public ImageRetrievalResponse(byte[] content, String fileName, long lastModified, String eTag) {
+		this.file = null;
+		this.content = content;
+		this.fileName = fileName;
+		this.size = content.length;
+		this.lastModified = lastModified;
+		this.eTag = eTag == null ? computeETag(content) : eTag;
 	}
 
 	/**
@@ -27,7 +84,119 @@ public class ImageRetrievalResponse {
 	 * @return The resource.
 	 */
 	public Resource getResource() {
-		return new FileSystemResource(file);
+		if (file != null) {
+			return new FileSystemResource(file);
+		}
+		return new ByteArrayResource(content) {
+			@Override
+			public String getFilename() {
+				return fileName;
+			}
+		};
+	}
+
+	/**
+	 * Gets the file containing the image.
+	 * 
+	 * @return The file, or an empty optional if the image is held in memory.
+	 */
+	public Optional<Path> getFile() {
+		return Optional.ofNullable(file);
+	}
+
+	/**
+	 * Gets the file name of the image.
+	 * 
+	 * @return The file name.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Gets the media type of the image, from its file name.
+	 * 
+	 * @return The media type, such as <code>image/jpeg</code>.
+	 */
+	public String getMediaType() {
+		String mediaType = URLConnection.guessContentTypeFromName(fileName);
+		return mediaType == null ? DEFAULT_MEDIA_TYPE : mediaType;
+	}
+
+	/**
+	 * Gets the size of the image.
+	 * 
+	 * @return The size in bytes.
+	 * @throws IOException If reading the attributes of the file fails.
+	 */
+	public long getContentLength() throws IOException {
+		readAttributes();
+		return size;
+	}
+
+	/**
+	 * Gets the last modification time of the image.
+	 * 
+	 * @return The time in milliseconds since the epoch, or zero if it is unknown.
+	 * @throws IOException If reading the attributes of the file fails.
+	 */
+	public long getLastModified() throws IOException {
+		readAttributes();
+		return lastModified;
+	}
+
+	/**
+	 * Gets an entity tag for the image. For files, it is a weak entity tag derived from their size and last
+	 * modification time: file systems with coarse timestamps may not tell apart two writes of the same size in a row,
+	 * so it doesn't guarantee that the contents are identical. For images held in memory, it is a strong entity tag
+	 * derived from their contents.
+	 * 
+	 * @return The entity tag, quoted and prefixed with <code>W/</code> if it is weak, as expected in an
+	 *         <code>ETag</code> header.
+	 * @throws IOException If reading the attributes of the file fails.
+	 */
+	public String getETag() throws IOException {
+		readAttributes();
+		return eTag;
+	}
+
+	/**
+	 * Transfers the image to a channel. Files are transferred with {@link FileChannel#transferTo}, which lets the
+	 * operating system copy the data without going through the JVM where supported.
+	 * 
+	 * @param target The channel to write to. It must be in blocking mode.
+	 * @return The number of bytes transferred.
+	 * @throws IllegalArgumentException If the channel is in non-blocking mode.
+	 * @throws IOException If reading the image or writing to the channel fails, or if the file was truncated during
+	 *         the transfer.
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		// A non-blocking channel could accept nothing for a while, and we would spin until it does
+		if (target instanceof SelectableChannel selectable && !selectable.isBlocking()) {
+			throw new IllegalArgumentException("Cannot transfer an image to a non-blocking channel");
+		}
+
+		if (file == null) {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			return content.length;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = channel.size();
+			long position = 0;
+			while (position < length) {
+				long transferred = channel.transferTo(position, length - position, target);
+				if (transferred == 0 && channel.size() <= position) {
+					throw new EOFException("The image " + file + " was truncated after " + position + " of " + length
+							+ " bytes");
+				}
+				position += transferred;
+			}
+			return length;
+		}
 	}
 
 	/**
@@ -48,4 +217,21 @@ public class ImageRetrievalResponse {
 	public boolean isExact() {
 		return exact;
 	}
+
+	private synchronized void readAttributes() throws IOException {
+		if (eTag != null) {
+			return;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		size = attributes.size();
+		lastModified = attributes.lastModifiedTime().toMillis();
+		eTag = "W/\"" + Long.toHexString(size) + "-"
+				+ Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)) + "\"";
+	}
+
+	private static String computeETag(byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return "\"" + Long.toHexString(content.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+	}
 }
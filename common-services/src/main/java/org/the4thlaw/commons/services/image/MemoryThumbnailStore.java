@@ -0,0 +1,141 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store keeping small thumbnails in memory, so that the most requested ones are served without any disk I/O.
+ * <p>
+ * The store is bounded by the total size of the thumbnails it holds. The least recently used thumbnails are evicted
+ * first.
+ * </p>
+ */
+public final class MemoryThumbnailStore implements ThumbnailStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MemoryThumbnailStore.class);
+
+	/**
+	 * A thumbnail held in memory.
+	 *
+	 * @param content The contents of the thumbnail.
+	 * @param fileName The file name of the thumbnail.
+	 * @param lastModified The last modification time of the thumbnail.
+	 * @param eTag The entity tag of the thumbnail, so that it remains the same as when served from another store.
+	 */
+	private record Entry(byte[] content, String fileName, long lastModified, String eTag) {
+	}
+
+	private final long maxBytes;
+	private final int maxThumbnailBytes;
+	private final Map<ThumbnailKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long usedBytes;
+	/** The number of removals, so that a thumbnail removed while it is being read is not kept. */
+	private long removals;
+
+	/**
+	 * Creates the store.
+	 *
+	 * @param maxBytes The maximum total size of the thumbnails held in memory.
+	 * @param maxThumbnailBytes The maximum size of a thumbnail to hold it in memory.
+	 * @throws IllegalArgumentException If a size is negative.
+	 */
+	public MemoryThumbnailStore(long maxBytes, int maxThumbnailBytes) {
+		if (maxBytes < 0 || maxThumbnailBytes < 0) {
+			throw new IllegalArgumentException(
+					"The sizes of the memory store must be positive: " + maxBytes + ", " + maxThumbnailBytes);
+		}
+		this.maxBytes = maxBytes;
+		// One more byte is read to detect larger thumbnails, which must not overflow
+		this.maxThumbnailBytes = (int) Math.min(Math.min(maxThumbnailBytes, maxBytes), Integer.MAX_VALUE - 1);
+	}
+
+	@Override
+	public ImageRetrievalResponse get(long id, int width) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(new ThumbnailKey(id, width));
+		}
+		return entry == null ? null
+				: new ImageRetrievalResponse(entry.content(), entry.fileName(), entry.lastModified(), entry.eTag());
+	}
+
+	@Override
+	public void put(long id, int width, ImageRetrievalResponse thumbnail) {
+		long initialRemovals;
+		synchronized (this) {
+			initialRemovals = removals;
+		}
+		byte[] content;
+		long lastModified;
+		String eTag;
+		try {
+			if (thumbnail.getContentLength() > maxThumbnailBytes) {
+				return;
+			}
+			lastModified = thumbnail.getLastModified();
+			eTag = thumbnail.getETag();
+			try (InputStream in = thumbnail.getResource().getInputStream()) {
+				content = in.readNBytes(maxThumbnailBytes + 1);
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Failed to read the thumbnail for image {} at width {}, not keeping it in memory", id, width,
+					e);
+			return;
+		}
+		if (content.length > maxThumbnailBytes) {
+			return;
+		}
+
+		synchronized (this) {
+			if (removals != initialRemovals) {
+				// The thumbnail may have been replaced while it was read
+				LOGGER.trace("Not keeping the thumbnail for image {} at width {} in memory, it may be outdated", id,
+						width);
+				return;
+			}
+			Entry previous = entries.put(new ThumbnailKey(id, width), new Entry(content, thumbnail.getFileName(),
+					lastModified, eTag));
+			if (previous != null) {
+				usedBytes -= previous.content().length;
+			}
+			usedBytes += content.length;
+			Iterator<Entry> eldest = entries.values().iterator();
+			while (usedBytes > maxBytes) {
+				usedBytes -= eldest.next().content().length;
+				eldest.remove();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void remove(long id, int width) {
+		removals++;
+		Entry previous = entries.remove(new ThumbnailKey(id, width));
+		if (previous != null) {
+			usedBytes -= previous.content().length;
+		}
+	}
+
+	/**
+	 * Gets the total size of the thumbnails held in memory.
+	 *
+	 * @return The size in bytes.
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Gets the number of thumbnails held in memory.
+	 *
+	 * @return The number of thumbnails.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
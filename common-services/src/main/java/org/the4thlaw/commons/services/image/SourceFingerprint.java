@@ -0,0 +1,27 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A cheap fingerprint of the original image a thumbnail was generated from, used to detect that the original was
+ * replaced.
+ *
+ * @param size The size of the original image.
+ * @param lastModified The last modification time of the original image, in milliseconds since the epoch.
+ */
+record SourceFingerprint(long size, long lastModified) {
+	/**
+	 * Reads the fingerprint of an image.
+	 *
+	 * @param image The image.
+	 * @return The fingerprint.
+	 * @throws IOException If reading the attributes of the image fails.
+	 */
+	static SourceFingerprint of(Path image) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(image, BasicFileAttributes.class);
+		return new SourceFingerprint(attributes.size(), attributes.lastModifiedTime().toMillis());
+	}
+}
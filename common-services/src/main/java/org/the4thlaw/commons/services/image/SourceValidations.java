@@ -0,0 +1,91 @@
+package org.the4thlaw.commons.services.image;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the {@link SourceFingerprint fingerprints} recorded for thumbnails, with the time at which their
+ * original image was last checked. This allows validating cached thumbnails without reading the recorded fingerprint
+ * from the thumbnail directory each time, and without checking the original image more than once per interval.
+ * <p>
+ * Like in the {@link ContentHashes}, the least recently used entries are evicted first.
+ * </p>
+ */
+final class SourceValidations {
+	/**
+	 * A validated thumbnail.
+	 *
+	 * @param recorded The fingerprint recorded for the thumbnail.
+	 * @param checkedNanos The {@link System#nanoTime()} at which the original image last matched the fingerprint.
+	 */
+	private record Entry(SourceFingerprint recorded, long checkedNanos) {
+	}
+
+	private final Map<ThumbnailKey, Entry> entries;
+
+	/**
+	 * Creates the cache.
+	 *
+	 * @param maxEntries The maximum number of thumbnails to keep in memory.
+	 */
+	SourceValidations(int maxEntries) {
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ThumbnailKey, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Checks whether the original image of a thumbnail was checked recently.
+	 *
+	 * @param key The thumbnail.
+	 * @param intervalNanos The interval between two checks of the original image.
+	 * @return <code>true</code> if the original image was last checked less than the interval ago.
+	 */
+	synchronized boolean isRecent(ThumbnailKey key, long intervalNanos) {
+		Entry entry = entries.get(key);
+		return entry != null && System.nanoTime() - entry.checkedNanos() < intervalNanos;
+	}
+
+	/**
+	 * Gets the fingerprint recorded for a thumbnail.
+	 *
+	 * @param key The thumbnail.
+	 * @return The fingerprint, or <code>null</code> if it is not in the cache.
+	 */
+	synchronized SourceFingerprint getRecorded(ThumbnailKey key) {
+		Entry entry = entries.get(key);
+		return entry == null ? null : entry.recorded();
+	}
+
+	/**
+	 * Records that the original image of a thumbnail was just checked against its fingerprint, or that the
+	 * fingerprint was just recorded.
+	 *
+	 * @param key The thumbnail.
+	 * @param recorded The fingerprint recorded for the thumbnail.
+	 */
+	synchronized void put(ThumbnailKey key, SourceFingerprint recorded) {
+		entries.put(key, new Entry(recorded, System.nanoTime()));
+	}
+
+	/**
+	 * Forgets about a thumbnail, for instance because it is stale or was removed.
+	 *
+	 * @param key The thumbnail.
+	 */
+	synchronized void remove(ThumbnailKey key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Forgets about all thumbnails.
+	 */
+	synchronized void clear() {
+		entries.clear();
+	}
+}
@@ -0,0 +1,43 @@
+package org.the4thlaw.commons.services.image;
+
+/**
+ * Receives the progress of a thumbnail pre-generation. All methods do nothing by default.
+ * <p>
+ * Generations complete on generation threads, so implementations must be thread-safe.
+ * </p>
+ *
+ * @see BaseThumbnailService#pregenerateThumbnails(java.util.Iterator, ThumbnailBatchListener)
+ */
+public interface ThumbnailBatchListener {
+	/** A listener that ignores the progress. */
+	ThumbnailBatchListener NONE = new ThumbnailBatchListener() {
+	};
+
+	/**
+	 * Called when a thumbnail was already in the cache.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 */
+	default void cached(long id, int width) {
+	}
+
+	/**
+	 * Called when a thumbnail was generated, or when the original image is small enough to be served instead.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 */
+	default void generated(long id, int width) {
+	}
+
+	/**
+	 * Called when a thumbnail could not be generated.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @param cause The reason of the failure.
+	 */
+	default void failed(long id, int width, Throwable cause) {
+	}
+}
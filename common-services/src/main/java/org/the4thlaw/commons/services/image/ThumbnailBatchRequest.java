@@ -0,0 +1,14 @@
+package org.the4thlaw.commons.services.image;
+
+import org.the4thlaw.commons.services.image.BaseThumbnailService.ImageSupplier;
+
+/**
+ * A request to generate thumbnails ahead of time.
+ *
+ * @param id The ID of the image, used to automatically name the thumbnails.
+ * @param widths The widths of the thumbnails to generate.
+ * @param imageSupplier A way to get the path to the image to resize.
+ * @see BaseThumbnailService#pregenerateThumbnails(java.util.Iterator, ThumbnailBatchListener)
+ */
+public record ThumbnailBatchRequest(long id, int[] widths, ImageSupplier imageSupplier) {
+}
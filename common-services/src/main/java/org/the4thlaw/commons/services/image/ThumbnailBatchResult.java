@@ -0,0 +1,12 @@
+package org.the4thlaw.commons.services.image;
+
+/**
+ * The outcome of a thumbnail pre-generation.
+ *
+ * @param cached The number of thumbnails that were already in the cache.
+ * @param generated The number of thumbnails that were generated, or for which the original image is small enough.
+ * @param failed The number of thumbnails that could not be generated.
+ * @see BaseThumbnailService#pregenerateThumbnails(java.util.Iterator, ThumbnailBatchListener)
+ */
+public record ThumbnailBatchResult(int cached, int generated, int failed) {
+}
@@ -0,0 +1,306 @@
+package org.the4thlaw.commons.services.image;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor for thumbnail generations, where queued generations are run by order of {@link ThumbnailPriority}.
+ * Generations of the same priority are run in the order in which they were submitted, except that generations
+ * submitted on behalf of different clients are interleaved, so that a client submitting many generations at once
+ * doesn't delay the generations of the other clients.
+ * <p>
+ * Fairness between clients follows start-time fair queuing: each generation is tagged with the virtual time at which
+ * it would start if the threads served the queued clients round-robin, and generations run by order of tag.
+ * Generations submitted without a client are all considered to come from the same client.
+ * </p>
+ */
+final class ThumbnailExecutor extends ThreadPoolExecutor {
+	/**
+	 * A generation with a priority.
+	 *
+	 * @param <T> The result type.
+	 */
+	static final class PrioritizedCallable<T> implements Callable<T> {
+		private final ThumbnailPriority priority;
+		private final String client;
+		private final Callable<T> delegate;
+
+		PrioritizedCallable(ThumbnailPriority priority, Callable<T> delegate) {
+			this(priority, null, delegate);
+		}
+
+		PrioritizedCallable(ThumbnailPriority priority, String client, Callable<T> delegate) {
+			this.priority = priority;
+			this.client = client;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public T call() throws Exception {
+			return delegate.call();
+		}
+	}
+
+	/**
+	 * A queued task with its priority and client.
+	 */
+	private static final class PrioritizedTask<T> extends FutureTask<T> {
+		private static final AtomicLong SEQUENCE = new AtomicLong();
+
+		private final long sequence = SEQUENCE.getAndIncrement();
+		private final String client;
+		private volatile ThumbnailPriority priority;
+		/** The virtual start time of the task, assigned when it is queued. */
+		private volatile long tag;
+
+		PrioritizedTask(Callable<T> callable, ThumbnailPriority priority, String client) {
+			super(callable);
+			this.priority = priority;
+			this.client = client;
+		}
+
+		PrioritizedTask(Runnable runnable, T value) {
+			super(runnable, value);
+			this.priority = ThumbnailPriority.INTERACTIVE;
+			this.client = null;
+		}
+	}
+
+	/**
+	 * The queuing state of a client.
+	 */
+	private static final class ClientState {
+		/** The tag of the last task queued for the client. */
+		private long lastTag;
+		/** The number of queued tasks for the client. */
+		private int queued;
+	}
+
+	/**
+	 * A bounded priority queue, with an optional bound per client. Tasks that weren't created by this executor are
+	 * considered interactive and run before any other task.
+	 * <p>
+	 * A quarter of the capacity is reserved for interactive tasks, so that a bulk of background tasks can't get
+	 * interactive tasks rejected.
+	 * </p>
+	 */
+	private static final class TaskQueue extends PriorityBlockingQueue<Runnable> {
+		private static final long serialVersionUID = 1L;
+		private static final Comparator<Runnable> ORDER = Comparator
+				.comparing((Runnable r) -> r instanceof PrioritizedTask<?> t ? t.priority : ThumbnailPriority.INTERACTIVE)
+				.thenComparingLong(r -> r instanceof PrioritizedTask<?> t ? t.tag : Long.MIN_VALUE)
+				.thenComparingLong(r -> r instanceof PrioritizedTask<?> t ? t.sequence : Long.MIN_VALUE);
+
+		private final int capacity;
+		/** The number of queued tasks above which background tasks are rejected. */
+		private final int backgroundCapacity;
+		private final transient Map<String, ClientState> clients = new HashMap<>();
+		/** The number of queued tasks per priority, so that they can be counted without going through the queue. */
+		private final AtomicIntegerArray queuedByPriority = new AtomicIntegerArray(ThumbnailPriority.values().length);
+		private int maxQueuedPerClient = Integer.MAX_VALUE;
+		/** The tag of the last task taken from the queue. */
+		private long virtualTime;
+
+		TaskQueue(int capacity) {
+			super(11, ORDER);
+			this.capacity = capacity;
+			// Keep at least one slot for background tasks, or they could only run on idle threads
+			this.backgroundCapacity = Math.max(capacity - capacity / 4, Math.min(capacity, 1));
+		}
+
+		synchronized void setMaxQueuedPerClient(int maxQueuedPerClient) {
+			this.maxQueuedPerClient = maxQueuedPerClient;
+		}
+
+		@Override
+		public synchronized boolean offer(Runnable task) {
+			int limit = getPriority(task) == ThumbnailPriority.INTERACTIVE ? capacity : backgroundCapacity;
+			if (size() >= limit) {
+				return false;
+			}
+			if (task instanceof PrioritizedTask<?> prioritized) {
+				ClientState client = clients.get(prioritized.client);
+				if (client != null && prioritized.client != null && client.queued >= maxQueuedPerClient) {
+					return false;
+				}
+				prioritized.tag = Math.max(virtualTime, client == null ? virtualTime : client.lastTag) + 1;
+			}
+			enqueue(task);
+			return true;
+		}
+
+		@Override
+		public Runnable take() throws InterruptedException {
+			return dequeued(super.take());
+		}
+
+		@Override
+		public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return dequeued(super.poll(timeout, unit));
+		}
+
+		@Override
+		public Runnable poll() {
+			return dequeued(super.poll());
+		}
+
+		@Override
+		public boolean remove(Object task) {
+			if (!super.remove(task)) {
+				return false;
+			}
+			synchronized (this) {
+				release((Runnable) task);
+			}
+			return true;
+		}
+
+		@Override
+		public int remainingCapacity() {
+			return Math.max(capacity - size(), 0);
+		}
+
+		/**
+		 * Counts the queued tasks of a given priority, in constant time.
+		 */
+		int getQueuedCount(ThumbnailPriority priority) {
+			return queuedByPriority.get(priority.ordinal());
+		}
+
+		@Override
+		public int drainTo(Collection<? super Runnable> target) {
+			return drainTo(target, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public int drainTo(Collection<? super Runnable> target, int maxElements) {
+			List<Runnable> drained = new ArrayList<>();
+			int count = super.drainTo(drained, maxElements);
+			synchronized (this) {
+				drained.forEach(this::release);
+			}
+			target.addAll(drained);
+			return count;
+		}
+
+		synchronized void reprioritize(PrioritizedTask<?> task, ThumbnailPriority priority) {
+			if (super.remove(task)) {
+				release(task);
+				task.priority = priority;
+				// The task was just removed so there is room for it, bypass the limits. It keeps its tag, and thus
+				// its submission order within its new priority.
+				enqueue(task);
+			}
+		}
+
+		/**
+		 * Adds a task to the queue and to the bookkeeping, without checking the limits.
+		 */
+		private void enqueue(Runnable task) {
+			if (task instanceof PrioritizedTask<?> prioritized) {
+				ClientState client = clients.computeIfAbsent(prioritized.client, c -> new ClientState());
+				client.lastTag = Math.max(client.lastTag, prioritized.tag);
+				client.queued++;
+			}
+			// The queue is unbounded, so adding the task always succeeds
+			super.offer(task);
+			queuedByPriority.incrementAndGet(getPriority(task).ordinal());
+		}
+
+		private Runnable dequeued(Runnable task) {
+			if (task != null) {
+				synchronized (this) {
+					if (task instanceof PrioritizedTask<?> prioritized) {
+						virtualTime = Math.max(virtualTime, prioritized.tag);
+					}
+					release(task);
+				}
+			}
+			return task;
+		}
+
+		private void release(Runnable task) {
+			queuedByPriority.decrementAndGet(getPriority(task).ordinal());
+			if (task instanceof PrioritizedTask<?> prioritized) {
+				ClientState client = clients.get(prioritized.client);
+				if (client != null && --client.queued == 0) {
+					// Clients that come back later start from the current virtual time anyway
+					clients.remove(prioritized.client);
+				}
+			}
+		}
+
+		private static ThumbnailPriority getPriority(Runnable task) {
+			return task instanceof PrioritizedTask<?> prioritized ? prioritized.priority : ThumbnailPriority.INTERACTIVE;
+		}
+	}
+
+	/**
+	 * Creates the executor.
+	 *
+	 * @param queueSize The maximum number of queued generations.
+	 */
+	ThumbnailExecutor(int queueSize) {
+		super(0, 1, 1, TimeUnit.MINUTES, new TaskQueue(queueSize));
+	}
+
+	/**
+	 * Sets the maximum number of generations that can be queued for a single client. Generations submitted for a
+	 * client that reached its limit are rejected, even if the queue isn't full.
+	 *
+	 * @param maxQueuedPerClient The maximum number of queued generations per client.
+	 */
+	void setMaxQueuedPerClient(int maxQueuedPerClient) {
+		((TaskQueue) getQueue()).setMaxQueuedPerClient(maxQueuedPerClient);
+	}
+
+	/**
+	 * Counts the queued tasks of a given priority. This is a constant time operation, so it can be called for each
+	 * submission.
+	 *
+	 * @param priority The priority.
+	 * @return The number of queued tasks.
+	 */
+	int getQueuedCount(ThumbnailPriority priority) {
+		return ((TaskQueue) getQueue()).getQueuedCount(priority);
+	}
+
+	/**
+	 * Raises the priority of a queued task. The task keeps its submission order within its new priority. Tasks that
+	 * are running or that already have a higher priority are left untouched.
+	 *
+	 * @param task The task, as returned by {@link #submit(Callable)}.
+	 * @param priority The new priority.
+	 */
+	void raisePriority(Future<?> task, ThumbnailPriority priority) {
+		if (task instanceof PrioritizedTask<?> prioritized && priority.compareTo(prioritized.priority) < 0) {
+			((TaskQueue) getQueue()).reprioritize(prioritized, priority);
+		}
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+		if (callable instanceof PrioritizedCallable<T> prioritized) {
+			return new PrioritizedTask<>(prioritized, prioritized.priority, prioritized.client);
+		}
+		return new PrioritizedTask<>(callable, ThumbnailPriority.INTERACTIVE, null);
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+		return new PrioritizedTask<>(runnable, value);
+	}
+}
@@ -0,0 +1,12 @@
+package org.the4thlaw.commons.services.image;
+
+/**
+ * A snapshot of the state of the thumbnail generation executor.
+ *
+ * @param poolSize The current number of threads in the pool.
+ * @param maximumPoolSize The maximum number of threads in the pool.
+ * @param activeCount The approximate number of threads that are generating thumbnails.
+ * @param queueDepth The number of generations waiting in the queue.
+ */
+public record ThumbnailExecutorStats(int poolSize, int maximumPoolSize, int activeCount, int queueDepth) {
+}
@@ -0,0 +1,95 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.the4thlaw.commons.utils.image.ImageUtils.ImageOutputFormat;
+
+/**
+ * Utilities to scan the thumbnail directory.
+ */
+final class ThumbnailFiles {
+	private static final Pattern THUMB_DIR_PATTERN = Pattern.compile("^\\d+w$");
+	private static final Pattern THUMB_FILE_PATTERN = Pattern.compile("^(\\d+)\\.(jpg|png)$");
+	private static final Pattern SHARD_DIR_PATTERN = Pattern.compile("^\\d+$");
+
+	/**
+	 * Visitor for thumbnail files.
+	 */
+	@FunctionalInterface
+	interface ThumbnailVisitor {
+		/**
+		 * Visits a thumbnail.
+		 *
+		 * @param id The ID of the image.
+		 * @param format The format of the thumbnail.
+		 * @param file The thumbnail file.
+		 * @throws IOException If processing the thumbnail fails.
+		 */
+		void visit(long id, ImageOutputFormat format, Path file) throws IOException;
+	}
+
+	private ThumbnailFiles() {
+	}
+
+	/**
+	 * Lists the directories containing thumbnails of a given width.
+	 *
+	 * @param thumbnailDirectory The directory where thumbnails are stored.
+	 * @return The width directories.
+	 * @throws IOException If listing the directory fails.
+	 */
+	static List<Path> listWidthDirectories(Path thumbnailDirectory) throws IOException {
+		try (Stream<Path> list = Files.list(thumbnailDirectory)) {
+			return list
+					.filter(Files::isDirectory)
+					// Filter what seem to be thumbnail directories
+					.filter(p -> THUMB_DIR_PATTERN.matcher(p.getFileName().toString()).matches())
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Gets the width of the thumbnails in a width directory.
+	 *
+	 * @param widthDirectory The directory, as returned by {@link #listWidthDirectories(Path)}.
+	 * @return The width.
+	 */
+	static int getWidth(Path widthDirectory) {
+		String name = widthDirectory.getFileName().toString();
+		return Integer.parseInt(name.substring(0, name.length() - 1));
+	}
+
+	/**
+	 * Visits the thumbnails in a width directory, whatever its {@link ThumbnailLayout layout}. Other files are
+	 * ignored.
+	 *
+	 * @param widthDirectory The directory, as returned by {@link #listWidthDirectories(Path)}.
+	 * @param visitor The visitor.
+	 * @throws IOException If listing the directory or visiting a thumbnail fails.
+	 */
+	static void scanWidthDirectory(Path widthDirectory, ThumbnailVisitor visitor) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(widthDirectory)) {
+			for (Path file : files) {
+				if (SHARD_DIR_PATTERN.matcher(file.getFileName().toString()).matches() && Files.isDirectory(file)) {
+					scanWidthDirectory(file, visitor);
+					continue;
+				}
+				Matcher matcher = THUMB_FILE_PATTERN.matcher(file.getFileName().toString());
+				if (!matcher.matches()) {
+					continue;
+				}
+				ImageOutputFormat format = "png".equals(matcher.group(2)) ? ImageOutputFormat.PNG
+						: ImageOutputFormat.JPG;
+				visitor.visit(Long.parseLong(matcher.group(1)), format, file);
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.the4thlaw.commons.utils.image.ImageUtils.ImageOutputFormat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of the thumbnails present in the thumbnail directory, so that cache hits can be resolved without
+ * querying the file system.
+ * <p>
+ * The index is organised in buckets by width. Each bucket is an open-addressing hash table of primitive
+ * <code>long</code> IDs, so that the memory footprint remains around 18 bytes per thumbnail.
+ * </p>
+ */
+final class ThumbnailIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailIndex.class);
+	private static final ImageOutputFormat[] FORMATS = ImageOutputFormat.values();
+
+	private final ConcurrentMap<Integer, WidthBucket> buckets = new ConcurrentHashMap<>();
+	private volatile boolean loaded;
+
+	/**
+	 * Checks whether the index has been fully loaded. Until then, a missing entry doesn't mean that the thumbnail
+	 * doesn't exist.
+	 *
+	 * @return <code>true</code> if the index is loaded.
+	 */
+	boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Looks up the format of a thumbnail.
+	 *
+	 * @param width The width of the thumbnail.
+	 * @param id The ID of the image.
+	 * @return The format of the thumbnail, or <code>null</code> if it is not indexed.
+	 */
+	ImageOutputFormat get(int width, long id) {
+		WidthBucket bucket = buckets.get(width);
+		if (bucket == null) {
+			return null;
+		}
+		return bucket.get(id);
+	}
+
+	/**
+	 * Records the presence of a thumbnail.
+	 *
+	 * @param width The width of the thumbnail.
+	 * @param id The ID of the image.
+	 * @param format The format of the thumbnail.
+	 */
+	void put(int width, long id, ImageOutputFormat format) {
+		buckets.computeIfAbsent(width, w -> new WidthBucket()).put(id, format);
+	}
+
+	/**
+	 * Records the removal of a thumbnail.
+	 *
+	 * @param width The width of the thumbnail.
+	 * @param id The ID of the image.
+	 */
+	void remove(int width, long id) {
+		WidthBucket bucket = buckets.get(width);
+		if (bucket != null) {
+			bucket.remove(id);
+		}
+	}
+
+	/**
+	 * Gets the number of indexed thumbnails.
+	 *
+	 * @return The number of thumbnails.
+	 */
+	int size() {
+		return buckets.values().stream().mapToInt(WidthBucket::size).sum();
+	}
+
+	/**
+	 * Scans the thumbnail directory to fill the index. Width directories are scanned in parallel.
+	 *
+	 * @param thumbnailDirectory The directory where thumbnails are stored.
+	 * @throws IOException If scanning the directory fails.
+	 */
+	void load(Path thumbnailDirectory) throws IOException {
+		if (!Files.isDirectory(thumbnailDirectory)) {
+			LOGGER.debug("Thumbnail directory {} does not exist yet, the index is empty", thumbnailDirectory);
+			loaded = true;
+			return;
+		}
+
+		long time = System.currentTimeMillis();
+		List<Path> widthDirectories = ThumbnailFiles.listWidthDirectories(thumbnailDirectory);
+
+		try {
+			widthDirectories.parallelStream().forEach(this::loadWidthDirectory);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		loaded = true;
+		LOGGER.info("Indexed {} thumbnails in {} width directories in {}ms", size(), widthDirectories.size(),
+				System.currentTimeMillis() - time);
+	}
+
+	private void loadWidthDirectory(Path directory) {
+		WidthBucket bucket = buckets.computeIfAbsent(ThumbnailFiles.getWidth(directory), w -> new WidthBucket());
+		try {
+			ThumbnailFiles.scanWidthDirectory(directory, (id, format, file) -> bucket.putIfAbsent(id, format));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * An open-addressing hash table from IDs to formats. Formats are stored as their ordinal plus one, so that zero
+	 * marks an empty slot and any ID can be used as key.
+	 */
+	private static final class WidthBucket {
+		private static final int INITIAL_CAPACITY = 64;
+
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private byte[] values = new byte[INITIAL_CAPACITY];
+		private int size;
+
+		ImageOutputFormat get(long id) {
+			lock.readLock().lock();
+			try {
+				int slot = findSlot(keys, values, id);
+				byte value = values[slot];
+				return value == 0 ? null : FORMATS[value - 1];
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		void put(long id, ImageOutputFormat format) {
+			write(id, format, true);
+		}
+
+		void putIfAbsent(long id, ImageOutputFormat format) {
+			write(id, format, false);
+		}
+
+		private void write(long id, ImageOutputFormat format, boolean replace) {
+			lock.writeLock().lock();
+			try {
+				int slot = findSlot(keys, values, id);
+				if (values[slot] == 0) {
+					keys[slot] = id;
+					values[slot] = (byte) (format.ordinal() + 1);
+					size++;
+					// Keep the load factor at or under 0.5
+					if (size * 2 > keys.length) {
+						rehash(keys.length * 2);
+					}
+				} else if (replace) {
+					values[slot] = (byte) (format.ordinal() + 1);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void remove(long id) {
+			lock.writeLock().lock();
+			try {
+				int slot = findSlot(keys, values, id);
+				if (values[slot] == 0) {
+					return;
+				}
+				values[slot] = 0;
+				size--;
+				// Re-insert the rest of the cluster so that lookups don't stop at the hole we just created
+				int mask = keys.length - 1;
+				for (int i = (slot + 1) & mask; values[i] != 0; i = (i + 1) & mask) {
+					long key = keys[i];
+					byte value = values[i];
+					values[i] = 0;
+					int target = findSlot(keys, values, key);
+					keys[target] = key;
+					values[target] = value;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		int size() {
+			lock.readLock().lock();
+			try {
+				return size;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		private void rehash(int capacity) {
+			long[] newKeys = new long[capacity];
+			byte[] newValues = new byte[capacity];
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != 0) {
+					int slot = findSlot(newKeys, newValues, keys[i]);
+					newKeys[slot] = keys[i];
+					newValues[slot] = values[i];
+				}
+			}
+			keys = newKeys;
+			values = newValues;
+		}
+
+		/**
+		 * Finds the slot holding an ID, or the empty slot where it should be inserted.
+		 */
+		private static int findSlot(long[] keys, byte[] values, long id) {
+			int mask = keys.length - 1;
+			int slot = Long.hashCode(id * 0x9E3779B97F4A7C15L) & mask;
+			while (values[slot] != 0 && keys[slot] != id) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package org.the4thlaw.commons.services.image;
+
+/**
+ * Key identifying a thumbnail.
+ *
+ * @param id The ID of the image.
+ * @param width The width of the thumbnail.
+ */
+record ThumbnailKey(long id, int width) {
+}
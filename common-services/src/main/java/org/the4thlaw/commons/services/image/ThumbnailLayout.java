@@ -0,0 +1,36 @@
+package org.the4thlaw.commons.services.image;
+
+import java.nio.file.Path;
+
+/**
+ * The organisation of the thumbnails inside the directory of their width.
+ */
+public enum ThumbnailLayout {
+	/** All thumbnails are directly in the directory of their width: <code>200w/1234.jpg</code>. */
+	FLAT {
+		@Override
+		Path resolveDirectory(Path widthDirectory, long id) {
+			return widthDirectory;
+		}
+	},
+	/**
+	 * Thumbnails are spread over 256 sub-directories of the directory of their width, by ID:
+	 * <code>200w/210/1234.jpg</code>. This keeps directories small when there are millions of images, which is
+	 * faster for most file systems.
+	 */
+	SHARDED {
+		@Override
+		Path resolveDirectory(Path widthDirectory, long id) {
+			return widthDirectory.resolve(Integer.toString((int) Math.floorMod(id, 256L)));
+		}
+	};
+
+	/**
+	 * Gets the directory holding a thumbnail.
+	 *
+	 * @param widthDirectory The directory of the width of the thumbnail.
+	 * @param id The ID of the image.
+	 * @return The directory.
+	 */
+	abstract Path resolveDirectory(Path widthDirectory, long id);
+}
@@ -0,0 +1,146 @@
+package org.the4thlaw.commons.services.image;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Binds the metrics of a thumbnail service to Micrometer. This requires <code>micrometer-core</code> on the
+ * classpath, which is an optional dependency.
+ * <p>
+ * With Spring Boot, it is enough to declare a bean of this type.
+ * </p>
+ */
+public class ThumbnailMeterBinder implements MeterBinder {
+	private static final String PREFIX = "thumbnails.";
+
+	private final BaseThumbnailService service;
+
+	/**
+	 * Creates the binder.
+	 *
+	 * @param service The service to collect metrics from.
+	 */
+	public ThumbnailMeterBinder(BaseThumbnailService service) {
+		this.service = service;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder(PREFIX + "executor.pool.size", () -> service.getExecutorStats().poolSize())
+				.description("The current number of thumbnail generation threads")
+				.register(registry);
+		Gauge.builder(PREFIX + "executor.active", () -> service.getExecutorStats().activeCount())
+				.description("The number of threads generating thumbnails")
+				.register(registry);
+		Gauge.builder(PREFIX + "executor.queued", () -> service.getExecutorStats().queueDepth())
+				.description("The number of thumbnail generations waiting in the queue")
+				.register(registry);
+
+		service.setMetrics(new MicrometerMetrics(registry));
+	}
+
+	/**
+	 * Metrics implementation backed by a meter registry.
+	 */
+	private static final class MicrometerMetrics implements ThumbnailMetrics {
+		private final Counter hits;
+		private final Counter misses;
+		private final Counter lenient;
+		private final Counter fallbacks;
+		private final Counter overloads;
+		private final Timer queueWait;
+		private final Timer generation;
+		private final Timer decode;
+		private final Timer resize;
+		private final Timer encode;
+
+		MicrometerMetrics(MeterRegistry registry) {
+			hits = requestCounter(registry, "hit");
+			misses = requestCounter(registry, "miss");
+			lenient = requestCounter(registry, "lenient");
+			fallbacks = requestCounter(registry, "fallback");
+			overloads = requestCounter(registry, "overload");
+			queueWait = Timer.builder(PREFIX + "queue.wait")
+					.description("The time thumbnail generations spend in the queue")
+					.publishPercentileHistogram()
+					.register(registry);
+			generation = Timer.builder(PREFIX + "generation")
+					.description("The time spent generating thumbnails")
+					.publishPercentileHistogram()
+					.register(registry);
+			decode = phaseTimer(registry, "decode");
+			resize = phaseTimer(registry, "resize");
+			encode = phaseTimer(registry, "encode");
+		}
+
+		private static Counter requestCounter(MeterRegistry registry, String result) {
+			return Counter.builder(PREFIX + "requests")
+					.description("The thumbnail requests, by result")
+					.tag("result", result)
+					.register(registry);
+		}
+
+		private static Timer phaseTimer(MeterRegistry registry, String phase) {
+			return Timer.builder(PREFIX + "generation.phase")
+					.description("The time spent in each phase of thumbnail generation")
+					.tag("phase", phase)
+					.publishPercentileHistogram()
+					.register(registry);
+		}
+
+		@Override
+		public void cacheHit(int width) {
+			hits.increment();
+		}
+
+		@Override
+		public void cacheMiss(int width) {
+			misses.increment();
+		}
+
+		@Override
+		public void lenientOriginal(int width) {
+			lenient.increment();
+		}
+
+		@Override
+		public void fallbackServed(int width) {
+			fallbacks.increment();
+		}
+
+		@Override
+		public void overload(int width) {
+			overloads.increment();
+		}
+
+		@Override
+		public void queueWait(long nanos) {
+			queueWait.record(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void generation(long nanos) {
+			generation.record(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void decode(long nanos) {
+			decode.record(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void resize(long nanos) {
+			resize.record(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void encode(long nanos) {
+			encode.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.the4thlaw.commons.services.image;
+
+/**
+ * Receives metrics about the thumbnail service. All methods do nothing by default so that implementations can pick
+ * the metrics they are interested in. Durations are in nanoseconds.
+ * <p>
+ * Implementations are called from request and generation threads, and must be thread-safe and fast.
+ * </p>
+ *
+ * @see BaseThumbnailService#setMetrics(ThumbnailMetrics)
+ * @see ThumbnailMeterBinder
+ */
+public interface ThumbnailMetrics {
+	/** Metrics that are discarded. */
+	ThumbnailMetrics NONE = new ThumbnailMetrics() {
+	};
+
+	/**
+	 * Called when a thumbnail is found in the cache.
+	 *
+	 * @param width The requested width.
+	 */
+	default void cacheHit(int width) {
+	}
+
+	/**
+	 * Called when a thumbnail is not found in the cache. The request may then be served with the original image, or
+	 * trigger a generation.
+	 *
+	 * @param width The requested width.
+	 */
+	default void cacheMiss(int width) {
+	}
+
+	/**
+	 * Called when the original image is returned instead of a thumbnail.
+	 *
+	 * @param width The requested width.
+	 */
+	default void lenientOriginal(int width) {
+	}
+
+	/**
+	 * Called when a thumbnail of another width is returned because generation failed or timed out.
+	 *
+	 * @param width The requested width.
+	 */
+	default void fallbackServed(int width) {
+	}
+
+	/**
+	 * Called when a {@link ThumbnailGenerationOverload} is thrown.
+	 *
+	 * @param width The requested width.
+	 */
+	default void overload(int width) {
+	}
+
+	/**
+	 * Called when a generation starts.
+	 *
+	 * @param nanos The time the generation spent in the queue.
+	 */
+	default void queueWait(long nanos) {
+	}
+
+	/**
+	 * Called when a generation completes successfully.
+	 *
+	 * @param nanos The total time spent generating, excluding the time in the queue.
+	 */
+	default void generation(long nanos) {
+	}
+
+	/**
+	 * Called once the source image of a generation has been decoded.
+	 *
+	 * @param nanos The time spent decoding.
+	 */
+	default void decode(long nanos) {
+	}
+
+	/**
+	 * Called once a thumbnail has been resized.
+	 *
+	 * @param nanos The time spent resizing.
+	 */
+	default void resize(long nanos) {
+	}
+
+	/**
+	 * Called once a thumbnail has been encoded and written.
+	 *
+	 * @param nanos The time spent encoding and writing.
+	 */
+	default void encode(long nanos) {
+	}
+}
@@ -0,0 +1,12 @@
+package org.the4thlaw.commons.services.image;
+
+/**
+ * The priority of a thumbnail request. Queued generations run by order of priority, then in the order in which they
+ * were submitted, interleaved between clients.
+ */
+public enum ThumbnailPriority {
+	/** A request from a user who is waiting for the thumbnail. */
+	INTERACTIVE,
+	/** A request to prepare a thumbnail ahead of time, which should only run when no user is waiting. */
+	BACKGROUND
+}
@@ -0,0 +1,150 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size quota for the thumbnail directory. When the thumbnails exceed the quota, the least recently used ones are
+ * evicted.
+ * <p>
+ * Recency is tracked in memory as thumbnails are served. Thumbnails that haven't been served since the service
+ * started are considered as last used when they were written.
+ * </p>
+ * <p>
+ * Thumbnails that are hard links to the same file, such as deduplicated thumbnails, are only counted once. Evicting
+ * one of them only frees space once all of them are evicted.
+ * </p>
+ */
+final class ThumbnailQuota {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailQuota.class);
+	/** When evicting, the fraction of the quota to get back to, so that eviction doesn't run continuously. */
+	private static final double LOW_WATERMARK = 0.9;
+
+	/**
+	 * A thumbnail found while scanning the thumbnail directory.
+	 *
+	 * @param key The key of the thumbnail.
+	 * @param file The thumbnail file.
+	 * @param fileKey The key identifying the file, shared by the hard links to the same file.
+	 * @param size The size of the file.
+	 * @param lastUsed The last time the thumbnail was used.
+	 */
+	private record ThumbnailFile(ThumbnailKey key, Path file, Object fileKey, long size, long lastUsed) {
+	}
+
+	private final long maxBytes;
+	private final ConcurrentMap<ThumbnailKey, Long> lastAccesses = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the quota.
+	 *
+	 * @param maxBytes The maximum size of the thumbnails, in bytes.
+	 */
+	ThumbnailQuota(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Records that a thumbnail was served.
+	 *
+	 * @param key The key of the thumbnail.
+	 */
+	void recordAccess(ThumbnailKey key) {
+		lastAccesses.put(key, System.currentTimeMillis());
+	}
+
+	/**
+	 * Evicts the least recently used thumbnails if the quota is exceeded.
+	 *
+	 * @param thumbnailDirectory The directory where thumbnails are stored.
+	 * @param onEviction Called for each evicted thumbnail.
+	 * @return The number of evicted thumbnails.
+	 * @throws IOException If scanning the thumbnail directory fails.
+	 */
+	int enforce(Path thumbnailDirectory, BiConsumer<ThumbnailKey, Path> onEviction) throws IOException {
+		if (!Files.isDirectory(thumbnailDirectory)) {
+			return 0;
+		}
+
+		long time = System.currentTimeMillis();
+		List<ThumbnailFile> thumbnails = new ArrayList<>();
+		for (Path widthDirectory : ThumbnailFiles.listWidthDirectories(thumbnailDirectory)) {
+			int width = ThumbnailFiles.getWidth(widthDirectory);
+			ThumbnailFiles.scanWidthDirectory(widthDirectory, (id, format, file) -> {
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				} catch (NoSuchFileException e) {
+					// Removed in the meantime
+					return;
+				}
+				ThumbnailKey key = new ThumbnailKey(id, width);
+				long lastUsed = Math.max(attributes.lastModifiedTime().toMillis(), lastAccesses.getOrDefault(key, 0L));
+				// Not all file systems provide file keys, in which case links can't be detected
+				Object fileKey = attributes.fileKey() != null ? attributes.fileKey() : file;
+				thumbnails.add(new ThumbnailFile(key, file, fileKey, attributes.size(), lastUsed));
+			});
+		}
+
+		// Forget about the thumbnails that were removed by other means
+		Set<ThumbnailKey> existing = new HashSet<>();
+		thumbnails.forEach(t -> existing.add(t.key()));
+		lastAccesses.keySet().retainAll(existing);
+
+		// Count the size of each file once, however many thumbnails link to it
+		Map<Object, Integer> links = new HashMap<>();
+		long totalBytes = 0;
+		for (ThumbnailFile thumbnail : thumbnails) {
+			if (links.merge(thumbnail.fileKey(), 1, Integer::sum) == 1) {
+				totalBytes += thumbnail.size();
+			}
+		}
+		LOGGER.debug("Thumbnails use {} bytes out of a quota of {} bytes", totalBytes, maxBytes);
+		if (totalBytes <= maxBytes) {
+			return 0;
+		}
+
+		long targetBytes = (long) (maxBytes * LOW_WATERMARK);
+		thumbnails.sort(Comparator.comparingLong(ThumbnailFile::lastUsed));
+		int evicted = 0;
+		for (ThumbnailFile thumbnail : thumbnails) {
+			if (totalBytes <= targetBytes) {
+				break;
+			}
+			// Don't evict thumbnails that were served during the scan
+			Long lastAccess = lastAccesses.get(thumbnail.key());
+			if (lastAccess != null && lastAccess > thumbnail.lastUsed()) {
+				continue;
+			}
+			onEviction.accept(thumbnail.key(), thumbnail.file());
+			FileUtils.deleteQuietly(thumbnail.file());
+			lastAccesses.remove(thumbnail.key());
+			if (links.merge(thumbnail.fileKey(), -1, Integer::sum) == 0) {
+				totalBytes -= thumbnail.size();
+			}
+			evicted++;
+		}
+
+		LOGGER.info("Evicted {} thumbnails in {}ms to respect the quota of {} bytes", evicted,
+				System.currentTimeMillis() - time, maxBytes);
+		return evicted;
+	}
+}
@@ -0,0 +1,72 @@
+package org.the4thlaw.commons.services.image;
+
+import java.time.Duration;
+
+/**
+ * The options of a thumbnail request, for the requests that don't use the {@link #DEFAULT defaults}.
+ *
+ * @param priority The priority of the request. If the thumbnail must be generated, the generation runs after the
+ *        queued generations of a higher priority.
+ * @param client The key of the client on whose behalf the request is made, such as a user or tenant name, or
+ *        <code>null</code> if it is not known. Queued generations of the same priority are shared fairly between
+ *        clients, see {@link BaseThumbnailService#setMaxQueuedGenerationsPerClient(int)}.
+ * @param timeout How long to wait for the thumbnail to be generated before falling back to another thumbnail. The
+ *        generation is abandoned once all requests for it have timed out.
+ * @see BaseThumbnailService#getThumbnail(long, int, boolean, ThumbnailRequestOptions,
+ *      BaseThumbnailService.ImageSupplier)
+ */
+public record ThumbnailRequestOptions(ThumbnailPriority priority, String client, Duration timeout) {
+	/**
+	 * Timeout for thumbnail generation. Firefox and Chrome's default request timeouts are 300 seconds but we don't want
+	 * to wait that long.
+	 */
+	private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(150);
+
+	/** The options of an {@link ThumbnailPriority#INTERACTIVE interactive} request from an unknown client. */
+	public static final ThumbnailRequestOptions DEFAULT = new ThumbnailRequestOptions(ThumbnailPriority.INTERACTIVE,
+			null, DEFAULT_TIMEOUT);
+
+	/**
+	 * Creates the options.
+	 *
+	 * @throws IllegalArgumentException If the priority is missing or the timeout is not positive.
+	 */
+	public ThumbnailRequestOptions {
+		if (priority == null) {
+			throw new IllegalArgumentException("The priority of a thumbnail request is mandatory");
+		}
+		if (timeout == null || timeout.isZero() || timeout.isNegative()) {
+			throw new IllegalArgumentException("The timeout of a thumbnail request must be positive: " + timeout);
+		}
+	}
+
+	/**
+	 * Copies these options with another priority.
+	 *
+	 * @param newPriority The priority.
+	 * @return The new options.
+	 */
+	public ThumbnailRequestOptions withPriority(ThumbnailPriority newPriority) {
+		return new ThumbnailRequestOptions(newPriority, client, timeout);
+	}
+
+	/**
+	 * Copies these options with another client.
+	 *
+	 * @param newClient The key of the client, or <code>null</code> if it is not known.
+	 * @return The new options.
+	 */
+	public ThumbnailRequestOptions withClient(String newClient) {
+		return new ThumbnailRequestOptions(priority, newClient, timeout);
+	}
+
+	/**
+	 * Copies these options with another timeout.
+	 *
+	 * @param newTimeout The timeout.
+	 * @return The new options.
+	 */
+	public ThumbnailRequestOptions withTimeout(Duration newTimeout) {
+		return new ThumbnailRequestOptions(priority, client, newTimeout);
+	}
+}
@@ -0,0 +1,42 @@
+package org.the4thlaw.commons.services.image;
+
+/**
+ * A place where thumbnails are stored.
+ * <p>
+ * Generated thumbnails are always written to the thumbnail directory. Additional stores can be put in front of it to
+ * serve the most requested thumbnails faster, see {@link BaseThumbnailService#setHotThumbnailStore(ThumbnailStore)}.
+ * </p>
+ * <p>
+ * Implementations are called from request and generation threads, and must be thread-safe.
+ * </p>
+ *
+ * @see MemoryThumbnailStore
+ */
+public interface ThumbnailStore {
+	/**
+	 * Looks up a thumbnail.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @return The thumbnail, or <code>null</code> if it is not in this store.
+	 */
+	ImageRetrievalResponse get(long id, int width);
+
+	/**
+	 * Stores a thumbnail. The store may decide not to keep it, for instance if it is too large.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 * @param thumbnail The thumbnail.
+	 */
+	void put(long id, int width, ImageRetrievalResponse thumbnail);
+
+	/**
+	 * Removes a thumbnail, for instance because it was replaced or evicted from another store. A thumbnail that is
+	 * being stored concurrently must not be kept, since it may be the outdated one.
+	 *
+	 * @param id The ID of the image.
+	 * @param width The width of the thumbnail.
+	 */
+	void remove(long id, int width);
+}
@@ -0,0 +1,38 @@
+package org.the4thlaw.commons.services.image;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.the4thlaw.commons.services.image.AdaptivePoolSizer.Sample;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link AdaptivePoolSizer}.
+ */
+class AdaptivePoolSizerTest {
+	/**
+	 * Tests that the size grows while throughput improves, and goes back when it doesn't.
+	 */
+	@Test
+	void growsWhileThroughputImproves() {
+		AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 4);
+		assertThat(sizer.next(1, new Sample(1, 1000, 5, 0.5, 0))).isEqualTo(2);
+		assertThat(sizer.next(2, new Sample(2, 1000, 5, 0.5, 0))).isEqualTo(3);
+		// No improvement: go back, and don't grow again right away
+		assertThat(sizer.next(3, new Sample(2, 1000, 5, 0.5, 0))).isEqualTo(2);
+		assertThat(sizer.next(2, new Sample(2, 1000, 5, 0.5, 0))).isEqualTo(2);
+	}
+
+	/**
+	 * Tests that the size shrinks under memory pressure and when generations get slower, within its bounds.
+	 */
+	@Test
+	void shrinks() {
+		AdaptivePoolSizer sizer = new AdaptivePoolSizer(2, 8);
+		assertThat(sizer.next(8, new Sample(4, 1000, 5, 0.95, 0))).isEqualTo(6);
+		assertThat(sizer.next(6, new Sample(4, 1000, 5, 0.5, 0.2))).isEqualTo(4);
+		assertThat(sizer.next(4, new Sample(4, 2000, 5, 0.5, 0))).isEqualTo(3);
+		assertThat(sizer.next(3, new Sample(4, 1000, 5, 0.95, 0))).isEqualTo(2);
+		assertThat(sizer.clamp(20)).isEqualTo(8);
+	}
+}
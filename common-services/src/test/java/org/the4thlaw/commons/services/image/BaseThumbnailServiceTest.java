@@ -1,5 +1,6 @@
 package org.the4thlaw.commons.services.image;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -7,20 +8,39 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import org.the4thlaw.commons.utils.image.ImageUtils;
 import org.the4thlaw.commons.utils.io.FileUtils;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.springframework.test.util.ReflectionTestUtils;
@@ -40,10 +60,38 @@ class BaseThumbnailServiceTest {
 		}
 	}
 
+	static class CountingExecutor extends ThreadPoolExecutor {
+		private final AtomicInteger submissions = new AtomicInteger();
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		CountingExecutor() {
+			super(1, 1, 1, TimeUnit.DAYS, new LinkedBlockingQueue<>(10));
+		}
+
+		@Override
+		public <T> Future<T> submit(Callable<T> task) {
+			submissions.incrementAndGet();
+			return super.submit(task);
+		}
+
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
     static class ThumbnailService extends BaseThumbnailService {
         protected ThumbnailService(Path thumbnailDirectory, int queueSize) {
             super(thumbnailDirectory, queueSize);
         }
+
+        protected ThumbnailService(Path thumbnailDirectory, int queueSize, Optional<Integer> threadCount) {
+            super(thumbnailDirectory, queueSize, threadCount);
+        }
         
     }
 
@@ -68,6 +116,7 @@ class BaseThumbnailServiceTest {
 	 */
 	@AfterEach
 	void tearDown() {
+		service.shutdown();
 		FileUtils.deleteDirectoryQuietly(testDir);
 	}
 
@@ -197,6 +246,887 @@ class BaseThumbnailServiceTest {
 		assertThat(ImageUtils.getImageWidth(thumbFile)).isEqualTo(200);
 	}
 
+	private static void assertFallback(BaseThumbnailService service, Path imagePath, int width, int fallbackWidth)
+			throws IOException {
+		ImageRetrievalResponse thumbResp = service.getThumbnail(42, width, true, () -> imagePath);
+		assertThat(thumbResp.isExact()).isFalse();
+		assertThat(thumbResp.getFileName()).isEqualTo("42.jpg");
+		assertThat(thumbResp.getResource().getFile().getParentFile().getName()).isEqualTo(fallbackWidth + "w");
+	}
+
+	/**
+	 * Tests that fallbacks are the thumbnails with the nearest width, preferring larger ones on ties, including
+	 * widths that were created after the existing widths were listed.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailNearestFallback() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 100);
+		assertThumbnailGenerated(service, imagePath, 300);
+
+		ThumbnailService serviceFail = new ThumbnailService(thumbDir, 1);
+		Object executor = ReflectionTestUtils.getField(serviceFail, "executor");
+		ReflectionTestUtils.setField(serviceFail, "executor", new FailingExecutor());
+		assertFallback(serviceFail, imagePath, 180, 100);
+		assertFallback(serviceFail, imagePath, 200, 300);
+		assertFallback(serviceFail, imagePath, 230, 300);
+
+		// The widths are listed by now, but new ones are tracked
+		ReflectionTestUtils.setField(serviceFail, "executor", executor);
+		assertThumbnailGenerated(serviceFail, imagePath, 190);
+		ReflectionTestUtils.setField(serviceFail, "executor", new FailingExecutor());
+		assertFallback(serviceFail, imagePath, 185, 190);
+		assertFallback(serviceFail, imagePath, 240, 190);
+		assertFallback(serviceFail, imagePath, 245, 300);
+	}
+
+	/**
+	 * Tests
+	 * {@link ThumbnailService#getThumbnail(long, int, boolean, org.demyo.service.impl.ThumbnailService.ImageSupplier)}
+	 * .
+	 *
+	 * <p>
+	 * This is the case for concurrent requests for the same thumbnail, which should share a single generation.
+	 * </p>
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailConcurrent() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		CountingExecutor counting = new CountingExecutor();
+		ReflectionTestUtils.setField(service, "executor", counting);
+
+		int requestCount = 5;
+		CountDownLatch supplied = new CountDownLatch(requestCount);
+		ExecutorService requests = Executors.newFixedThreadPool(requestCount);
+		try {
+			List<Future<ImageRetrievalResponse>> responses = new ArrayList<>();
+			for (int i = 0; i < requestCount; i++) {
+				responses.add(requests.submit(() -> service.getThumbnail(42, 200, true, () -> {
+					supplied.countDown();
+					return imagePath;
+				})));
+			}
+			// Let all requests reach the point where they wait for the generation
+			supplied.await();
+			Thread.sleep(500);
+			counting.release.countDown();
+
+			for (Future<ImageRetrievalResponse> response : responses) {
+				assertThat(response.get().getResource().getFile())
+						.isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+			}
+			assertThat(counting.submissions.get()).isEqualTo(1);
+		} finally {
+			requests.shutdownNow();
+			counting.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests {@link ThumbnailService#getThumbnailAsync(long, int, boolean, BaseThumbnailService.ImageSupplier)}, for a
+	 * generated thumbnail, a cache hit and a fallback.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailAsync() throws Exception {
+		Path imagePath = copyImage("image-600x800.png");
+
+		ImageRetrievalResponse thumbResp = service.getThumbnailAsync(42, 200, true, () -> imagePath).get();
+		assertThat(thumbResp.isExact()).isTrue();
+		assertThat(thumbResp.getResource().getFile()).isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+
+		// Cache hits and fallbacks for rejected generations are resolved on the calling thread
+		CompletableFuture<ImageRetrievalResponse> cached = service.getThumbnailAsync(42, 200, true, () -> imagePath);
+		assertThat(cached).isCompletedWithValueMatching(ImageRetrievalResponse::isExact);
+
+		ReflectionTestUtils.setField(service, "executor", new FailingExecutor());
+		CompletableFuture<ImageRetrievalResponse> fallback = service.getThumbnailAsync(42, 225, true,
+				() -> imagePath);
+		assertThat(fallback).isDone();
+		thumbResp = fallback.get();
+		assertThat(thumbResp.isExact()).isFalse();
+		assertThat(thumbResp.getResource().getFile()).isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+	}
+
+	/**
+	 * Tests that a request sharing a generation which is discarded because all other requests timed out gets a
+	 * fallback rather than no thumbnail at all.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailDiscarded() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 200);
+		CountingExecutor counting = new CountingExecutor();
+		ReflectionTestUtils.setField(service, "executor", counting);
+		List<String> fallbackThreads = new CopyOnWriteArrayList<>();
+		service.setMetrics(new ThumbnailMetrics() {
+			@Override
+			public void fallbackServed(int width) {
+				fallbackThreads.add(Thread.currentThread().getName());
+			}
+		});
+		try {
+			CompletableFuture<ImageRetrievalResponse> request = service.getThumbnailAsync(42, 225, true,
+					() -> imagePath);
+			// Make it look like all requests timed out while the generation was queued
+			Map<?, ?> inFlight = (Map<?, ?>) ReflectionTestUtils.getField(service, "inFlightGenerations");
+			ReflectionTestUtils.setField(inFlight.values().iterator().next(), "deadline", 0L);
+			counting.release.countDown();
+
+			ImageRetrievalResponse thumbResp = request.get(10, TimeUnit.SECONDS);
+			assertThat(thumbResp).isNotNull();
+			assertThat(thumbResp.isExact()).isFalse();
+			assertThat(thumbResp.getResource().getFile())
+					.isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+			assertThat(thumbDir.resolve("225w").resolve("42.jpg")).doesNotExist();
+			// The fallback is looked up by the service, not by the thread that failed the generation
+			assertThat(fallbackThreads).containsExactly("thumbnail-io");
+		} finally {
+			counting.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that requests time out after the timeout given in their options, and that a shared generation is kept for
+	 * as long as one of its requests waits for it.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void requestTimeout() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 200);
+		CountingExecutor counting = new CountingExecutor();
+		ReflectionTestUtils.setField(service, "executor", counting);
+		try {
+			CompletableFuture<ImageRetrievalResponse> patient = service.getThumbnailAsync(42, 225, true,
+					() -> imagePath);
+			ThumbnailRequestOptions hasty = ThumbnailRequestOptions.DEFAULT.withTimeout(Duration.ofMillis(50));
+			ImageRetrievalResponse thumbResp = service.getThumbnail(42, 225, true, hasty, () -> imagePath);
+			assertThat(thumbResp.isExact()).isFalse();
+			assertThat(thumbResp.getResource().getFile())
+					.isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+
+			counting.release.countDown();
+			assertThat(patient.get(10, TimeUnit.SECONDS).isExact()).isTrue();
+			assertThat(counting.submissions).hasValue(1);
+		} finally {
+			counting.shutdownNow();
+		}
+
+		assertThatThrownBy(() -> ThumbnailRequestOptions.DEFAULT.withTimeout(Duration.ZERO))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	/**
+	 * Blocks the generations while they are decoding, until released.
+	 */
+	static class BlockingMetrics implements ThumbnailMetrics {
+		private final CountDownLatch decoding = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final AtomicInteger interruptions = new AtomicInteger();
+
+		@Override
+		public void decode(long nanos) {
+			decoding.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				interruptions.incrementAndGet();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void expire(long id, int width) {
+		Map<?, ?> inFlight = (Map<?, ?>) ReflectionTestUtils.getField(service, "inFlightGenerations");
+		ReflectionTestUtils.setField(inFlight.get(new ThumbnailKey(id, width)), "deadline", 0L);
+	}
+
+	private void cancelIfExpired(long id, int width) {
+		ReflectionTestUtils.invokeMethod(service, "cancelIfExpired", new ThumbnailKey(id, width));
+	}
+
+	/**
+	 * Tests that a queued generation is removed from the queue once all requests for it timed out.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void cancelQueuedGeneration() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 100);
+		ThumbnailExecutor executor = new ThumbnailExecutor(10);
+		executor.setCorePoolSize(1);
+		ReflectionTestUtils.setField(service, "executor", executor);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.submit(() -> {
+				release.await();
+				return null;
+			});
+			CompletableFuture<ImageRetrievalResponse> request = service.getThumbnailAsync(42, 200, true,
+					() -> imagePath);
+			assertThat(executor.getQueue()).hasSize(1);
+
+			expire(42, 200);
+			cancelIfExpired(42, 200);
+			assertThat(executor.getQueue()).isEmpty();
+			assertThat(request.get(10, TimeUnit.SECONDS).getResource().getFile())
+					.isEqualTo(thumbDir.resolve("100w").resolve("42.jpg").toFile());
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+		assertThat(thumbDir.resolve("200w").resolve("42.jpg")).doesNotExist();
+	}
+
+	/**
+	 * Tests that a queued generation is kept once a request joined it, even if the previous requests timed out.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void cancelJoinedGeneration() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		ThumbnailExecutor executor = new ThumbnailExecutor(10);
+		executor.setCorePoolSize(1);
+		ReflectionTestUtils.setField(service, "executor", executor);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.submit(() -> {
+				release.await();
+				return null;
+			});
+			CompletableFuture<ImageRetrievalResponse> first = service.getThumbnailAsync(42, 200, true,
+					() -> imagePath);
+			expire(42, 200);
+			CompletableFuture<ImageRetrievalResponse> joiner = service.getThumbnailAsync(42, 200, true,
+					() -> imagePath);
+			cancelIfExpired(42, 200);
+			assertThat(executor.getQueue()).hasSize(1);
+
+			release.countDown();
+			assertThat(first.get(10, TimeUnit.SECONDS).isExact()).isTrue();
+			assertThat(joiner.get(10, TimeUnit.SECONDS).getResource().getFile())
+					.isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that a running generation is interrupted once all requests for it timed out, and aborted at the next
+	 * check of its deadline.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void cancelRunningGeneration() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 100);
+		BlockingMetrics metrics = new BlockingMetrics();
+		service.setMetrics(metrics);
+		try {
+			CompletableFuture<ImageRetrievalResponse> request = service.getThumbnailAsync(42, 200, true,
+					() -> imagePath);
+			assertThat(metrics.decoding.await(10, TimeUnit.SECONDS)).isTrue();
+
+			expire(42, 200);
+			cancelIfExpired(42, 200);
+			assertThat(request.get(10, TimeUnit.SECONDS).getResource().getFile())
+					.isEqualTo(thumbDir.resolve("100w").resolve("42.jpg").toFile());
+			// The thread is free for other generations
+			service.setMetrics(ThumbnailMetrics.NONE);
+			assertThumbnailGenerated(service, imagePath, 300);
+		} finally {
+			metrics.release.countDown();
+		}
+		assertThat(metrics.interruptions).hasValue(1);
+		assertThat(thumbDir.resolve("200w").resolve("42.jpg")).doesNotExist();
+	}
+
+	/**
+	 * Tests that a running generation goes on while requests are still waiting for one of its siblings, even if all
+	 * requests for the requested width timed out.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void cancelGenerationWithSiblings() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		service.setSiblingWidths(100, 200);
+		BlockingMetrics metrics = new BlockingMetrics();
+		service.setMetrics(metrics);
+		try {
+			CompletableFuture<ImageRetrievalResponse> request = service.getThumbnailAsync(42, 200, true,
+					() -> imagePath);
+			assertThat(metrics.decoding.await(10, TimeUnit.SECONDS)).isTrue();
+			CompletableFuture<ImageRetrievalResponse> siblingRequest = service.getThumbnailAsync(42, 100, true,
+					() -> imagePath);
+
+			expire(42, 200);
+			cancelIfExpired(42, 200);
+			metrics.release.countDown();
+			assertThat(siblingRequest.get(10, TimeUnit.SECONDS).getResource().getFile())
+					.isEqualTo(thumbDir.resolve("100w").resolve("42.jpg").toFile());
+			assertThat(request.get(10, TimeUnit.SECONDS).isExact()).isTrue();
+		} finally {
+			metrics.release.countDown();
+		}
+		assertThat(metrics.interruptions).hasValue(0);
+	}
+
+	/**
+	 * Tests that sibling widths are generated along with a requested thumbnail, except those larger than the
+	 * original.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailWithSiblings() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		service.setSiblingWidths(100, 200, 300, 1000);
+		assertThumbnailGenerated(service, imagePath, 200);
+
+		for (int width : new int[] { 100, 300 }) {
+			File sibling = thumbDir.resolve(width + "w").resolve("42.jpg").toFile();
+			assertThat(sibling).exists();
+			assertThat(ImageUtils.getImageWidth(sibling)).isEqualTo(width);
+		}
+		assertThat(thumbDir.resolve("1000w")).doesNotExist();
+	}
+
+	/**
+	 * Tests that a thumbnail is generated when the source image needs more memory than the whole memory budget.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailOverMemoryBudget() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		service.setMemoryBudget(1024);
+		File thumbFile = assertThumbnailGenerated(service, imagePath, 200);
+		assertThat(thumbFile).isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+	}
+
+	/**
+	 * Tests that generations that would wait too long in the queue are shed in favour of a fallback, and that
+	 * generations resume once the queue drains, however slow the previous generations were.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailShed() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 200);
+
+		ThumbnailExecutor executor = new ThumbnailExecutor(10);
+		executor.setCorePoolSize(1);
+		ReflectionTestUtils.setField(service, "executor", executor);
+		// Much slower than the objective
+		AtomicLong averageGenerationNanos = new AtomicLong(Duration.ofSeconds(10).toNanos());
+		ReflectionTestUtils.setField(service, "averageGenerationNanos", averageGenerationNanos);
+		service.setLatencyObjective(Duration.ofSeconds(2));
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			// An idle pool admits the generation
+			assertThumbnailGenerated(service, imagePath, 100);
+			// Which brought the average down a bit
+			averageGenerationNanos.set(Duration.ofSeconds(10).toNanos());
+
+			executor.submit(() -> {
+				started.countDown();
+				release.await();
+				return null;
+			});
+			started.await();
+			Future<?> queued = executor.submit(() -> null);
+			ImageRetrievalResponse thumbResp = service.getThumbnail(42, 225, true, () -> imagePath);
+			assertThat(thumbResp.isExact()).isFalse();
+			assertThat(thumbResp.getResource().getFile())
+					.isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+			assertThat(executor.getQueue()).hasSize(1);
+
+			// Background generations are not shed
+			CompletableFuture<ImageRetrievalResponse> background = service.getThumbnailAsync(42, 150, true,
+					ThumbnailRequestOptions.DEFAULT.withPriority(ThumbnailPriority.BACKGROUND), () -> imagePath);
+			assertThat(executor.getQueue()).hasSize(2);
+
+			release.countDown();
+			queued.get(10, TimeUnit.SECONDS);
+			assertThat(background.get(10, TimeUnit.SECONDS).isExact()).isTrue();
+			assertThumbnailGenerated(service, imagePath, 225);
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests {@link BaseThumbnailService#pregenerateThumbnails(java.util.stream.Stream, ThumbnailBatchListener)}.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void pregenerateThumbnails() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 100);
+
+		List<String> failures = new CopyOnWriteArrayList<>();
+		ThumbnailBatchResult result = service.pregenerateThumbnails(Stream.of(
+				new ThumbnailBatchRequest(42, new int[] { 100, 200, 300 }, () -> imagePath),
+				new ThumbnailBatchRequest(43, new int[] { 200 }, () -> testDir.resolve("missing.jpg"))),
+				new ThumbnailBatchListener() {
+					@Override
+					public void failed(long id, int width, Throwable cause) {
+						failures.add(id + "@" + width);
+					}
+				});
+
+		assertThat(result).isEqualTo(new ThumbnailBatchResult(1, 2, 1));
+		assertThat(failures).containsExactly("43@200");
+		assertThat(thumbDir.resolve("200w").resolve("42.jpg")).exists();
+		assertThat(thumbDir.resolve("300w").resolve("42.jpg")).exists();
+	}
+
+	/**
+	 * Tests that pre-generations don't expire like interactive requests, even if they wait behind other generations
+	 * for longer than the timeout.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void pregenerateThumbnailsWithoutTimeout() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		ThumbnailExecutor executor = new ThumbnailExecutor(10);
+		executor.setCorePoolSize(1);
+		executor.setMaximumPoolSize(1);
+		ReflectionTestUtils.setField(service, "executor", executor);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.submit(() -> {
+				started.countDown();
+				release.await();
+				return null;
+			});
+			started.await();
+			CompletableFuture<ThumbnailBatchResult> batch = CompletableFuture.supplyAsync(
+					() -> service.pregenerateThumbnails(
+							Stream.of(new ThumbnailBatchRequest(42, new int[] { 200 }, () -> imagePath)),
+							new ThumbnailBatchListener() {
+							}));
+			Map<?, ?> inFlight = (Map<?, ?>) ReflectionTestUtils.getField(service, "inFlightGenerations");
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (inFlight.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+
+			// Make it look like the generation waited for longer than the timeout
+			expire(42, 200);
+			cancelIfExpired(42, 200);
+			release.countDown();
+			assertThat(batch.get(30, TimeUnit.SECONDS)).isEqualTo(new ThumbnailBatchResult(0, 1, 0));
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+		assertThat(thumbDir.resolve("200w").resolve("42.jpg")).exists();
+	}
+
+	/**
+	 * Tests that the pool is throttled while the heap is under pressure, and restored afterwards.
+	 */
+	@Test
+	void heapPressureThrottling() {
+		ThumbnailService fixed = new ThumbnailService(thumbDir, 1, Optional.of(3));
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) ReflectionTestUtils.getField(fixed, "executor");
+		fixed.enableHeapPressureThrottling(0.99);
+		try {
+			ReflectionTestUtils.invokeMethod(fixed, "onHeapPressure");
+			assertThat(executor.getMaximumPoolSize()).isEqualTo(1);
+			// Changes to the pool size are deferred until the heap recovers
+			fixed.setThumbnailPoolSize();
+			assertThat(executor.getMaximumPoolSize()).isEqualTo(1);
+
+			fixed.checkHeapPressure();
+			assertThat(executor.getMaximumPoolSize()).isEqualTo(3);
+			assertThat(executor.getCorePoolSize()).isEqualTo(3);
+		} finally {
+			fixed.disableHeapPressureThrottling();
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that fast previews are served as inexact, then upgraded in the background.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailFastPreview() throws Exception {
+		Path imagePath = copyImage("image-600x800.png");
+		service.setFastPreviews(true);
+
+		ImageRetrievalResponse thumbResp = service.getThumbnail(42, 200, true, () -> imagePath);
+		assertThat(thumbResp.isExact()).isFalse();
+		assertThat(ImageUtils.getImageWidth(thumbResp.getResource().getFile())).isEqualTo(200);
+
+		Map<?, ?> previews = (Map<?, ?>) ReflectionTestUtils.getField(service, "previews");
+		long deadline = System.currentTimeMillis() + 30_000;
+		while (!previews.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		thumbResp = service.getThumbnail(42, 200, true, () -> imagePath);
+		assertThat(thumbResp.isExact()).isTrue();
+		File thumbFile = thumbResp.getResource().getFile();
+		assertThat(thumbFile).isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+		assertThat(ImageUtils.getImageWidth(thumbFile)).isEqualTo(200);
+		try (Stream<Path> files = Files.list(thumbDir.resolve("200w"))) {
+			assertThat(files).containsExactly(thumbDir.resolve("200w").resolve("42.jpg"));
+		}
+	}
+
+	/**
+	 * Tests that previews that weren't upgraded before a restart are upgraded by the next service.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailFastPreviewAfterRestart() throws Exception {
+		Path imagePath = copyImage("image-600x800.png");
+		service.setFastPreviews(true).get(10, TimeUnit.SECONDS);
+		// Only accept the generation of the preview, not its upgrade
+		AtomicInteger accepted = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.DAYS, new LinkedBlockingQueue<>(10)) {
+			@Override
+			public <T> Future<T> submit(Callable<T> task) {
+				if (accepted.getAndIncrement() > 0) {
+					throw new RejectedExecutionException("Only one task accepted");
+				}
+				return super.submit(task);
+			}
+		};
+		ReflectionTestUtils.setField(service, "executor", executor);
+		try {
+			assertThat(service.getThumbnail(42, 200, true, () -> imagePath).isExact()).isFalse();
+		} finally {
+			executor.shutdownNow();
+		}
+		Path marker = thumbDir.resolve("200w").resolve("42.preview");
+		assertThat(marker).exists();
+
+		ThumbnailService restarted = new ThumbnailService(thumbDir, 1);
+		restarted.setFastPreviews(true).get(10, TimeUnit.SECONDS);
+		assertThat(restarted.getThumbnail(42, 200, true, () -> imagePath).isExact()).isFalse();
+		Map<?, ?> previews = (Map<?, ?>) ReflectionTestUtils.getField(restarted, "previews");
+		long deadline = System.currentTimeMillis() + 30_000;
+		while (!previews.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertThat(restarted.getThumbnail(42, 200, true, () -> imagePath).isExact()).isTrue();
+		assertThat(marker).doesNotExist();
+	}
+
+	/**
+	 * Tests that thumbnails are served from the hot store once they have been read from the thumbnail directory.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailFromHotStore() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		MemoryThumbnailStore hotStore = new MemoryThumbnailStore(1_000_000, 100_000);
+		service.setHotThumbnailStore(hotStore);
+		File thumbFile = assertThumbnailGenerated(service, imagePath, 200);
+
+		// Internal lookups, such as those of pre-generations and fallbacks, don't load thumbnails in memory
+		service.pregenerateThumbnails(Stream.of(new ThumbnailBatchRequest(42, new int[] { 200 }, () -> imagePath)),
+				ThumbnailBatchListener.NONE);
+		ReflectionTestUtils.setField(service, "executor", new FailingExecutor());
+		assertThat(service.getThumbnail(42, 225, true, () -> imagePath).isExact()).isFalse();
+		assertThat(hotStore.size()).isZero();
+
+		// Offered to the hot store on the first cache hit
+		assertThat(service.getThumbnail(42, 200, true, () -> imagePath).getFile()).isPresent();
+		ImageRetrievalResponse thumbResp = service.getThumbnail(42, 200, true, () -> imagePath);
+		assertThat(thumbResp.getFile()).isEmpty();
+		assertThat(thumbResp.isExact()).isTrue();
+		assertThat(thumbResp.getResource().getContentAsByteArray()).isEqualTo(Files.readAllBytes(thumbFile.toPath()));
+		assertThat(hotStore.size()).isEqualTo(1);
+	}
+
+	/**
+	 * Tests the migration to and from the sharded layout, and that lookups and fallbacks follow the layout.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void shardedLayout() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 200);
+		Path flat = thumbDir.resolve("200w").resolve("42.jpg");
+		Path sharded = thumbDir.resolve("200w").resolve("42").resolve("42.jpg");
+
+		service.migrateThumbnailLayout(ThumbnailLayout.SHARDED);
+		assertThat(flat).doesNotExist();
+		assertThat(sharded).exists();
+		assertThat(service.getThumbnail(42, 200, true, () -> imagePath).getFile()).contains(sharded);
+		assertThat(service.getThumbnail(300, 100, true, () -> imagePath).getFile())
+				.contains(thumbDir.resolve("100w").resolve("44").resolve("300.jpg"));
+
+		ReflectionTestUtils.setField(service, "executor", new FailingExecutor());
+		assertThat(service.getThumbnail(42, 225, true, () -> imagePath).getFile()).contains(sharded);
+
+		service.migrateThumbnailLayout(ThumbnailLayout.FLAT);
+		assertThat(flat).exists();
+		assertThat(thumbDir.resolve("200w").resolve("42")).doesNotExist();
+		assertThat(service.getThumbnail(42, 200, true, () -> imagePath).getFile()).contains(flat);
+	}
+
+	/**
+	 * Tests that thumbnails are regenerated once their original image is replaced, if the validation is enabled.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void sourceValidation() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		File thumbFile = assertThumbnailGenerated(service, imagePath, 200);
+		ImageIO.write(new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB), "jpg", imagePath.toFile());
+		Files.setLastModifiedTime(imagePath, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+		assertThat(ImageUtils.getImageInfo(assertThumbnailGenerated(service, imagePath, 200)).getHeight())
+				.isEqualTo(267);
+
+		// Thumbnails without a fingerprint are stale if the original is more recent
+		service.setSourceValidation(true);
+		service.setSourceRecheckInterval(Duration.ZERO);
+		assertThat(ImageUtils.getImageInfo(assertThumbnailGenerated(service, imagePath, 200)).getHeight())
+				.isEqualTo(150);
+		assertThat(thumbDir.resolve("200w").resolve("42.src")).exists();
+
+		// Unchanged originals don't trigger a regeneration
+		FileTime old = FileTime.fromMillis(1_000_000_000_000L);
+		Files.setLastModifiedTime(thumbFile.toPath(), old);
+		assertThumbnailGenerated(service, imagePath, 200);
+		assertThat(Files.getLastModifiedTime(thumbFile.toPath())).isEqualTo(old);
+
+		// Any change to the fingerprint does, even if the original looks older
+		Files.setLastModifiedTime(imagePath, FileTime.fromMillis(1_000_000_000_000L));
+		assertThumbnailGenerated(service, imagePath, 200);
+		assertThat(Files.getLastModifiedTime(thumbFile.toPath())).isNotEqualTo(old);
+
+		// Recorded fingerprints are kept in memory
+		Path fingerprintFile = thumbDir.resolve("200w").resolve("42.src");
+		Files.delete(fingerprintFile);
+		assertThat(service.getThumbnail(42, 200, true, () -> imagePath).isExact()).isTrue();
+		assertThat(fingerprintFile).doesNotExist();
+
+		// Originals that were checked recently are not checked again
+		service.setSourceRecheckInterval(Duration.ofHours(1));
+		assertThat(service.getThumbnail(42, 200, true, () -> imagePath).isExact()).isTrue();
+		AtomicInteger supplierCalls = new AtomicInteger();
+		assertThat(service.getThumbnail(42, 200, true, () -> {
+			supplierCalls.incrementAndGet();
+			return imagePath;
+		}).getFile()).hasValue(thumbFile.toPath());
+		assertThat(supplierCalls).hasValue(0);
+	}
+
+	/**
+	 * Tests that images with identical contents share their thumbnails, and that unused shared thumbnails are purged.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void contentDeduplication() throws Exception {
+		service.enableContentDeduplication(100);
+		Path imagePath = copyImage("image-600x800.jpg");
+		Path duplicatePath = Files.copy(imagePath, testDir.resolve("duplicate.jpg"));
+		Path thumbFile = assertThumbnailGenerated(service, imagePath, 200).toPath();
+		Path duplicateThumbFile = service.getThumbnail(43, 200, true, () -> duplicatePath).getFile().get();
+
+		assertThat(duplicateThumbFile).isEqualTo(thumbDir.resolve("200w").resolve("43.jpg"));
+		assertThat(Files.isSameFile(thumbFile, duplicateThumbFile)).isTrue();
+		assertThat(Files.getAttribute(thumbFile, "unix:nlink")).isEqualTo(3);
+
+		service.purgeUnusedThumbnailContent();
+		Path contentDir = thumbDir.resolve("200w").resolve("content");
+		try (Stream<Path> files = Files.walk(contentDir)) {
+			assertThat(files.filter(Files::isRegularFile)).hasSize(1);
+		}
+		Files.delete(thumbFile);
+		Files.delete(duplicateThumbFile);
+		service.purgeUnusedThumbnailContent();
+		try (Stream<Path> files = Files.walk(contentDir)) {
+			assertThat(files.filter(Files::isRegularFile)).isEmpty();
+		}
+	}
+
+	/**
+	 * Tests that the siblings of a generation share the thumbnails of images with identical contents, and that shared
+	 * thumbnails that had to be copied are never purged.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void contentDeduplicationSiblings() throws Exception {
+		service.enableContentDeduplication(100);
+		Path imagePath = copyImage("image-600x800.jpg");
+		Path duplicatePath = Files.copy(imagePath, testDir.resolve("duplicate.jpg"));
+		Path thumbFile = assertThumbnailGenerated(service, imagePath, 100).toPath();
+		service.setSiblingWidths(100, 200);
+		service.getThumbnail(43, 200, true, () -> duplicatePath);
+		Path duplicateThumbFile = thumbDir.resolve("100w").resolve("43.jpg");
+		assertThat(Files.isSameFile(thumbFile, duplicateThumbFile)).isTrue();
+
+		Path contentDir = thumbDir.resolve("100w").resolve("content");
+		Files.createFile(contentDir.resolve(".copied"));
+		Files.delete(thumbFile);
+		Files.delete(duplicateThumbFile);
+		service.purgeUnusedThumbnailContent();
+		try (Stream<Path> files = Files.walk(contentDir)) {
+			assertThat(files.filter(f -> f.getFileName().toString().endsWith(".jpg"))).hasSize(1);
+		}
+	}
+
+	/**
+	 * Tests that generations locked by another process are awaited without holding a generation thread, and that
+	 * stale locks are taken over.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void generationLocks() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		service.enableGenerationLocks(Duration.ofMinutes(1));
+		Path lockDir = Files.createDirectories(thumbDir.resolve(".locks"));
+		Path lock = Files.createFile(lockDir.resolve("42-200w.lock"));
+
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) ReflectionTestUtils.getField(service, "executor");
+		executor.setCorePoolSize(1);
+		executor.setMaximumPoolSize(1);
+		CompletableFuture<ImageRetrievalResponse> waiting = service.getThumbnailAsync(42, 200, true, () -> imagePath);
+		Thread.sleep(500);
+		assertThat(waiting).isNotDone();
+		// The only generation thread is not kept busy by the wait
+		assertThumbnailGenerated(service, imagePath, 100);
+
+		// The other process generates the thumbnail and releases the lock
+		File thumbFile = assertThumbnailGenerated(new ThumbnailService(thumbDir, 1), imagePath, 200);
+		FileTime generated = FileTime.fromMillis(1_000_000_000_000L);
+		Files.setLastModifiedTime(thumbFile.toPath(), generated);
+		Files.delete(lock);
+		assertThat(waiting.get(10, TimeUnit.SECONDS).getFile()).contains(thumbFile.toPath());
+		assertThat(Files.getLastModifiedTime(thumbFile.toPath())).isEqualTo(generated);
+
+		Path staleLock = Files.createFile(lockDir.resolve("43-200w.lock"));
+		Files.setLastModifiedTime(staleLock, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+		assertThat(service.getThumbnail(43, 200, true, () -> imagePath).getFile()).isPresent();
+		assertThat(staleLock).doesNotExist();
+
+		// Held locks don't become stale while waiting for memory
+		service.setMemoryBudget(1024);
+		Semaphore memory = ReflectionTestUtils.invokeMethod(ReflectionTestUtils.getField(service, "memoryBudget"),
+				"semaphore");
+		memory.acquire();
+		CompletableFuture<ImageRetrievalResponse> waitingForMemory = service.getThumbnailAsync(44, 200, true,
+				() -> imagePath);
+		Path ownLock = lockDir.resolve("44-200w.lock");
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!Files.exists(ownLock) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		Files.setLastModifiedTime(ownLock, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+		Thread.sleep(1500);
+		assertThat(Files.getLastModifiedTime(ownLock).toMillis()).isGreaterThan(System.currentTimeMillis() - 60_000);
+		memory.release();
+		assertThat(waitingForMemory.get(10, TimeUnit.SECONDS).getFile()).isPresent();
+		assertThat(ownLock).doesNotExist();
+
+		service.shutdown();
+		assertThat((ExecutorService) ReflectionTestUtils.getField(service, "lockPoller"))
+				.matches(ExecutorService::isShutdown);
+	}
+
+	/**
+	 * Tests that metrics are reported for misses, hits and lenient matches.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void metrics() throws Exception {
+		AtomicInteger hits = new AtomicInteger();
+		AtomicInteger misses = new AtomicInteger();
+		AtomicInteger lenient = new AtomicInteger();
+		AtomicInteger generations = new AtomicInteger();
+		service.setMetrics(new ThumbnailMetrics() {
+			@Override
+			public void cacheHit(int width) {
+				hits.incrementAndGet();
+			}
+
+			@Override
+			public void cacheMiss(int width) {
+				misses.incrementAndGet();
+			}
+
+			@Override
+			public void lenientOriginal(int width) {
+				lenient.incrementAndGet();
+			}
+
+			@Override
+			public void generation(long nanos) {
+				generations.incrementAndGet();
+			}
+		});
+
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 200);
+		assertThumbnailGenerated(service, imagePath, 200);
+		assertThumbnailGenerated(service, imagePath, 600);
+
+		assertThat(misses).hasValue(2);
+		assertThat(generations).hasValue(1);
+		assertThat(hits).hasValue(1);
+		assertThat(lenient).hasValue(1);
+	}
+
+	/**
+	 * Tests that cache hits are served from the thumbnail index once it is enabled.
+	 *
+	 * @throws Exception If generation fails.
+	 */
+	@Test
+	void getThumbnailIndexed() throws Exception {
+		Path imagePath = copyImage("image-600x800.jpg");
+		assertThumbnailGenerated(service, imagePath, 100);
+
+		ThumbnailService indexed = new ThumbnailService(thumbDir, 1);
+		indexed.enableThumbnailIndex().get();
+		File thumbFile = assertThumbnailGenerated(indexed, imagePath, 200);
+		assertThat(thumbFile).isEqualTo(thumbDir.resolve("200w").resolve("42.jpg").toFile());
+
+		// Remove the thumbnails behind the back of the index: it should still report them
+		FileUtils.deleteDirectoryQuietly(thumbDir);
+		for (int width : new int[] { 100, 200 }) {
+			assertThat(indexed.getThumbnail(42, width, true, () -> imagePath).getResource().getFile())
+					.isEqualTo(thumbDir.resolve(width + "w").resolve("42.jpg").toFile());
+		}
+	}
+
 	private static File assertThumbnailGenerated(BaseThumbnailService service, Path imagePath, int width)
 			throws  IOException {
 		ImageRetrievalResponse thumbResp = service.getThumbnail(42, width, true, () -> imagePath);
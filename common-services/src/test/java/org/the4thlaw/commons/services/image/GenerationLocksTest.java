@@ -0,0 +1,59 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link GenerationLocks}.
+ */
+class GenerationLocksTest {
+	/**
+	 * Tests that stale locks are taken over, and that their former holder can't release them anymore.
+	 *
+	 * @throws IOException If handling the lock files fails.
+	 */
+	@Test
+	void staleLockTakeover() throws IOException {
+		Path dir = Files.createTempDirectory("GenerationLocksTest");
+		try {
+			GenerationLocks first = new GenerationLocks(dir, Duration.ofMinutes(1));
+			GenerationLocks second = new GenerationLocks(dir, Duration.ofMinutes(1));
+			Path file = dir.resolve("42-200w.lock");
+
+			GenerationLocks.Lock paused = first.tryAcquire(42, 200);
+			assertThat(paused).isNotNull();
+			assertThat(second.tryAcquire(42, 200)).isNull();
+
+			// The holder is paused for longer than the stale duration
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+			GenerationLocks.Lock takenOver = second.tryAcquire(42, 200);
+			assertThat(takenOver).isNotNull();
+			String token = Files.readString(file);
+
+			// Resuming the former holder must not affect the new one
+			paused.refresh();
+			paused.close();
+			assertThat(file).exists();
+			assertThat(Files.readString(file)).isEqualTo(token);
+			assertThat(first.tryAcquire(42, 200)).isNull();
+
+			takenOver.close();
+			assertThat(file).doesNotExist();
+			try (Stream<Path> files = Files.list(dir)) {
+				assertThat(files).isEmpty();
+			}
+		} finally {
+			FileUtils.deleteDirectoryQuietly(dir);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.the4thlaw.commons.utils.image.ImageInfo;
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ImageMetadataCache}.
+ */
+class ImageMetadataCacheTest {
+	private Path testDir;
+	private Path image;
+
+	/**
+	 * Sets up the test directory and image.
+	 *
+	 * @throws IOException If copying the image fails.
+	 * @throws URISyntaxException If getting the image fails.
+	 */
+	@BeforeEach
+	void setup() throws IOException, URISyntaxException {
+		testDir = Files.createTempDirectory("ImageMetadataCacheTest");
+		image = testDir.resolve("image.png");
+		Files.copy(Paths.get(ImageMetadataCacheTest.class.getResource("/image-600x800.png").toURI()), image);
+	}
+
+	/**
+	 * Cleans the test directory.
+	 */
+	@AfterEach
+	void tearDown() {
+		FileUtils.deleteDirectoryQuietly(testDir);
+	}
+
+	/**
+	 * Tests that the cache survives a save and a load, and that modified images are read again.
+	 *
+	 * @throws IOException If reading the image or the storage fails.
+	 */
+	@Test
+	void saveAndLoad() throws IOException {
+		Path storage = testDir.resolve("cache").resolve(".image-metadata");
+		ImageMetadataCache cache = new ImageMetadataCache(10, storage);
+		ImageInfo info = cache.getImageInfo(image);
+		assertThat(info.getWidth()).isEqualTo(600);
+		assertThat(info.getHeight()).isEqualTo(800);
+		cache.save();
+		assertThat(storage).exists();
+		// No temporary file is left behind
+		try (Stream<Path> files = Files.list(storage.getParent())) {
+			assertThat(files).containsExactly(storage);
+		}
+
+		ImageMetadataCache reloaded = new ImageMetadataCache(10, storage);
+		reloaded.load();
+		assertThat(reloaded.size()).isEqualTo(1);
+		assertThat(reloaded.getImageInfo(image)).isSameAs(reloaded.getImageInfo(image));
+
+		// Changing the modification time must invalidate the entry
+		ImageInfo cached = reloaded.getImageInfo(image);
+		Files.setLastModifiedTime(image, FileTime.fromMillis(0));
+		assertThat(reloaded.getImageInfo(image)).isNotSameAs(cached);
+	}
+
+	/**
+	 * Tests that the cache doesn't grow beyond its maximum size.
+	 *
+	 * @throws IOException If reading the images fails.
+	 */
+	@Test
+	void bounded() throws IOException {
+		ImageMetadataCache cache = new ImageMetadataCache(2, null);
+		for (int i = 0; i < 4; i++) {
+			Path copy = testDir.resolve(i + ".png");
+			Files.copy(image, copy);
+			cache.getImageInfo(copy);
+		}
+		assertThat(cache.size()).isEqualTo(2);
+	}
+}
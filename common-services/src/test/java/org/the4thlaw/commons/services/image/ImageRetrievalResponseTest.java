@@ -0,0 +1,125 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ImageRetrievalResponse}.
+ */
+class ImageRetrievalResponseTest {
+	/**
+	 * Tests the serving metadata and the transfer of responses backed by files, and that they are kept when the
+	 * thumbnail is copied to memory.
+	 *
+	 * @throws IOException If reading the thumbnail fails.
+	 */
+	@Test
+	void fileMetadata() throws IOException {
+		Path dir = Files.createTempDirectory("ImageRetrievalResponseTest");
+		try {
+			Path file = Files.write(dir.resolve("1.jpg"), new byte[] { 1, 2, 3 });
+			Files.setLastModifiedTime(file, FileTime.from(Instant.ofEpochMilli(1_700_000_000_000L)));
+			ImageRetrievalResponse response = new ImageRetrievalResponse(file);
+
+			assertThat(response.getContentLength()).isEqualTo(3);
+			assertThat(response.getLastModified()).isEqualTo(1_700_000_000_000L);
+			assertThat(response.getMediaType()).isEqualTo("image/jpeg");
+			assertThat(response.getETag()).startsWith("W/\"3-").endsWith("\"");
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (WritableByteChannel channel = Channels.newChannel(out)) {
+				assertThat(response.transferTo(channel)).isEqualTo(3);
+			}
+			assertThat(out.toByteArray()).containsExactly(1, 2, 3);
+
+			MemoryThumbnailStore store = new MemoryThumbnailStore(1000, 100);
+			store.put(1, 100, response);
+			ImageRetrievalResponse cached = store.get(1, 100);
+			assertThat(cached.getETag()).isEqualTo(response.getETag());
+			assertThat(cached.getLastModified()).isEqualTo(1_700_000_000_000L);
+		} finally {
+			FileUtils.deleteDirectoryQuietly(dir);
+		}
+	}
+
+	/**
+	 * Tests the serving metadata and the transfer of responses held in memory.
+	 *
+	 * @throws IOException If writing the thumbnail fails.
+	 */
+	@Test
+	void memoryMetadata() throws IOException {
+		ImageRetrievalResponse response = new ImageRetrievalResponse(new byte[] { 1, 2, 3 }, "1.png");
+		assertThat(response.getContentLength()).isEqualTo(3);
+		assertThat(response.getMediaType()).isEqualTo("image/png");
+		assertThat(response.getETag()).isEqualTo(new ImageRetrievalResponse(new byte[] { 1, 2, 3 }, "2.png").getETag())
+				.isNotEqualTo(new ImageRetrievalResponse(new byte[] { 1, 2, 4 }, "1.png").getETag());
+		assertThat(new ImageRetrievalResponse(new byte[0], "1.unknown").getMediaType())
+				.isEqualTo("application/octet-stream");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertThat(response.transferTo(Channels.newChannel(out))).isEqualTo(3);
+		assertThat(out.toByteArray()).containsExactly(1, 2, 3);
+	}
+
+	/**
+	 * Tests that transfers fail rather than spin when they can't make progress: on a non-blocking channel, or when the
+	 * file is truncated during the transfer.
+	 *
+	 * @throws IOException If reading the thumbnail fails.
+	 */
+	@Test
+	void transferWithoutProgress() throws IOException {
+		Path dir = Files.createTempDirectory("ImageRetrievalResponseTest");
+		try (Pipe.SinkChannel sink = Pipe.open().sink()) {
+			Path file = Files.write(dir.resolve("1.jpg"), new byte[100_000]);
+			ImageRetrievalResponse response = new ImageRetrievalResponse(file);
+
+			sink.configureBlocking(false);
+			assertThatThrownBy(() -> response.transferTo(sink)).isInstanceOf(IllegalArgumentException.class);
+
+			WritableByteChannel truncating = new WritableByteChannel() {
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+						channel.truncate(10);
+					}
+					int written = src.remaining();
+					src.position(src.limit());
+					return written;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return true;
+				}
+
+				@Override
+				public void close() {
+					// Nothing to close
+				}
+			};
+			assertThatThrownBy(() -> response.transferTo(truncating)).isInstanceOf(EOFException.class);
+		} finally {
+			FileUtils.deleteDirectoryQuietly(dir);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.Resource;
+
+/**
+ * Tests for {@link MemoryThumbnailStore}.
+ */
+class MemoryThumbnailStoreTest {
+	/**
+	 * Tests that thumbnails are served from memory, and that the least recently used ones are evicted.
+	 *
+	 * @throws IOException If reading the thumbnails fails.
+	 */
+	@Test
+	void lruEviction() throws IOException {
+		MemoryThumbnailStore store = new MemoryThumbnailStore(250, 100);
+		store.put(1, 100, new ImageRetrievalResponse(new byte[100], "1.jpg"));
+		store.put(2, 100, new ImageRetrievalResponse(new byte[100], "2.png"));
+		// Too large to be kept
+		store.put(3, 100, new ImageRetrievalResponse(new byte[101], "3.jpg"));
+		assertThat(store.get(3, 100)).isNull();
+
+		// Thumbnail 1 is the oldest but was just served
+		ImageRetrievalResponse cached = store.get(1, 100);
+		assertThat(cached.getFile()).isEmpty();
+		assertThat(cached.getResource().getFilename()).isEqualTo("1.jpg");
+		assertThat(cached.getResource().contentLength()).isEqualTo(100);
+
+		store.put(4, 100, new ImageRetrievalResponse(new byte[100], "4.jpg"));
+		assertThat(store.get(2, 100)).isNull();
+		assertThat(store.get(1, 100)).isNotNull();
+		assertThat(store.get(4, 100)).isNotNull();
+		assertThat(store.getUsedBytes()).isEqualTo(200);
+
+		store.remove(1, 100);
+		assertThat(store.get(1, 100)).isNull();
+		assertThat(store.size()).isEqualTo(1);
+	}
+
+	/**
+	 * Tests that thumbnails backed by files are read into memory.
+	 *
+	 * @throws IOException If reading the thumbnails fails.
+	 */
+	@Test
+	void putFile() throws IOException {
+		Path dir = Files.createTempDirectory("MemoryThumbnailStoreTest");
+		try {
+			Path file = Files.write(dir.resolve("1.jpg"), new byte[] { 1, 2, 3 });
+			MemoryThumbnailStore store = new MemoryThumbnailStore(1000, 100);
+			store.put(1, 100, new ImageRetrievalResponse(file));
+			Files.delete(file);
+
+			assertThat(store.get(1, 100).getResource().getContentAsByteArray()).containsExactly(1, 2, 3);
+		} finally {
+			FileUtils.deleteDirectoryQuietly(dir);
+		}
+	}
+
+	/**
+	 * Tests that a thumbnail removed while it is being read is not kept, since it may be outdated.
+	 */
+	@Test
+	void removeWhilePutting() {
+		MemoryThumbnailStore store = new MemoryThumbnailStore(1000, 100);
+		store.put(1, 100, new ImageRetrievalResponse(new byte[] { 1, 2, 3 }, "1.jpg") {
+			@Override
+			public Resource getResource() {
+				// Like the upgrade of a preview, which replaces the file and invalidates the thumbnail
+				store.remove(1, 100);
+				return super.getResource();
+			}
+		});
+		assertThat(store.get(1, 100)).isNull();
+
+		store.put(1, 100, new ImageRetrievalResponse(new byte[] { 1, 2, 3 }, "1.jpg"));
+		assertThat(store.get(1, 100)).isNotNull();
+	}
+
+	/**
+	 * Tests that the store works without a size limit, and rejects negative sizes.
+	 *
+	 * @throws IOException If reading the thumbnails fails.
+	 */
+	@Test
+	void unboundedSizes() throws IOException {
+		MemoryThumbnailStore store = new MemoryThumbnailStore(Long.MAX_VALUE, Integer.MAX_VALUE);
+		store.put(1, 100, new ImageRetrievalResponse(new byte[] { 1, 2, 3 }, "1.jpg"));
+		assertThat(store.get(1, 100).getResource().getContentAsByteArray()).containsExactly(1, 2, 3);
+
+		assertThatThrownBy(() -> new MemoryThumbnailStore(1000, -1)).isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,164 @@
+package org.the4thlaw.commons.services.image;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.the4thlaw.commons.services.image.ThumbnailExecutor.PrioritizedCallable;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ThumbnailExecutor}.
+ */
+class ThumbnailExecutorTest {
+	/**
+	 * Tests that queued tasks run by order of priority, then of submission, and that priorities can be raised.
+	 *
+	 * @throws Exception If a task fails.
+	 */
+	@Test
+	void priorities() throws Exception {
+		ThumbnailExecutor executor = new ThumbnailExecutor(10);
+		executor.setCorePoolSize(1);
+		try {
+			CountDownLatch release = new CountDownLatch(1);
+			List<String> order = new CopyOnWriteArrayList<>();
+			// Keep the only thread busy so that the other tasks are queued
+			Future<?> blocker = executor.submit(() -> {
+				release.await();
+				return null;
+			});
+
+			submit(executor, ThumbnailPriority.BACKGROUND, "background1", order);
+			submit(executor, ThumbnailPriority.BACKGROUND, "background2", order);
+			Future<?> promoted = submit(executor, ThumbnailPriority.BACKGROUND, "promoted", order);
+			submit(executor, ThumbnailPriority.INTERACTIVE, "interactive1", order);
+			Future<?> last = submit(executor, ThumbnailPriority.INTERACTIVE, "interactive2", order);
+			assertThat(executor.getQueuedCount(ThumbnailPriority.INTERACTIVE)).isEqualTo(2);
+			assertThat(executor.getQueuedCount(ThumbnailPriority.BACKGROUND)).isEqualTo(3);
+			executor.raisePriority(promoted, ThumbnailPriority.INTERACTIVE);
+			assertThat(executor.getQueuedCount(ThumbnailPriority.INTERACTIVE)).isEqualTo(3);
+			assertThat(executor.getQueuedCount(ThumbnailPriority.BACKGROUND)).isEqualTo(2);
+
+			release.countDown();
+			blocker.get(10, TimeUnit.SECONDS);
+			last.get(10, TimeUnit.SECONDS);
+			executor.shutdown();
+			assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+			// The promoted task keeps its submission order, so it runs before the interactive tasks submitted later
+			assertThat(order).containsExactly("promoted", "interactive1", "interactive2", "background1",
+					"background2");
+			assertThat(executor.getQueuedCount(ThumbnailPriority.INTERACTIVE)).isZero();
+			assertThat(executor.getQueuedCount(ThumbnailPriority.BACKGROUND)).isZero();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that queued tasks of different clients are interleaved, and that the number of queued tasks per client can
+	 * be limited.
+	 *
+	 * @throws Exception If a task fails.
+	 */
+	@Test
+	void fairness() throws Exception {
+		ThumbnailExecutor executor = new ThumbnailExecutor(10);
+		executor.setCorePoolSize(1);
+		executor.setMaxQueuedPerClient(3);
+		try {
+			CountDownLatch release = new CountDownLatch(1);
+			List<String> order = new CopyOnWriteArrayList<>();
+			Future<?> blocker = executor.submit(() -> {
+				release.await();
+				return null;
+			});
+
+			submit(executor, "heavy", "heavy1", order);
+			submit(executor, "heavy", "heavy2", order);
+			submit(executor, "heavy", "heavy3", order);
+			assertThatThrownBy(() -> submit(executor, "heavy", "heavy4", order))
+					.isInstanceOf(RejectedExecutionException.class);
+			submit(executor, "light", "light1", order);
+			Future<?> last = submit(executor, "light", "light2", order);
+
+			release.countDown();
+			blocker.get(10, TimeUnit.SECONDS);
+			last.get(10, TimeUnit.SECONDS);
+			executor.shutdown();
+			assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+			assertThat(order).containsExactly("heavy1", "light1", "heavy2", "light2", "heavy3");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that the queue is bounded.
+	 */
+	@Test
+	void capacity() {
+		ThumbnailExecutor executor = new ThumbnailExecutor(1);
+		executor.setCorePoolSize(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.submit(() -> {
+				release.await();
+				return null;
+			});
+			executor.submit(() -> null);
+			assertThatThrownBy(() -> executor.submit(() -> null)).isInstanceOf(RejectedExecutionException.class);
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that background tasks can't fill the queue, and that draining the queue updates its bookkeeping.
+	 */
+	@Test
+	void interactiveReservation() {
+		ThumbnailExecutor executor = new ThumbnailExecutor(4);
+		executor.setCorePoolSize(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			List<String> order = new CopyOnWriteArrayList<>();
+			executor.submit(() -> {
+				release.await();
+				return null;
+			});
+			for (int i = 0; i < 3; i++) {
+				submit(executor, ThumbnailPriority.BACKGROUND, "background" + i, order);
+			}
+			assertThatThrownBy(() -> submit(executor, ThumbnailPriority.BACKGROUND, "rejected", order))
+					.isInstanceOf(RejectedExecutionException.class);
+			submit(executor, "client", "interactive", order);
+
+			assertThat(executor.shutdownNow()).hasSize(4);
+			assertThat(executor.getQueuedCount(ThumbnailPriority.INTERACTIVE)).isZero();
+			assertThat(executor.getQueuedCount(ThumbnailPriority.BACKGROUND)).isZero();
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	private static Future<?> submit(ThumbnailExecutor executor, String client, String name, List<String> order) {
+		return executor.submit(new PrioritizedCallable<>(ThumbnailPriority.INTERACTIVE, client, () -> order.add(name)));
+	}
+
+	private static Future<?> submit(ThumbnailExecutor executor, ThumbnailPriority priority, String name,
+			List<String> order) {
+		return executor.submit(new PrioritizedCallable<>(priority, () -> order.add(name)));
+	}
+}
@@ -0,0 +1,73 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.the4thlaw.commons.utils.image.ImageUtils.ImageOutputFormat;
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ThumbnailIndex}.
+ */
+class ThumbnailIndexTest {
+	/**
+	 * Tests {@link ThumbnailIndex#put(int, long, ImageOutputFormat)} and {@link ThumbnailIndex#remove(int, long)},
+	 * with enough entries to trigger rehashes.
+	 */
+	@Test
+	void putAndRemove() {
+		ThumbnailIndex index = new ThumbnailIndex();
+		for (long id = 0; id < 1000; id++) {
+			index.put(200, id, id % 3 == 0 ? ImageOutputFormat.PNG : ImageOutputFormat.JPG);
+		}
+		assertThat(index.size()).isEqualTo(1000);
+		assertThat(index.get(200, 3)).isEqualTo(ImageOutputFormat.PNG);
+		assertThat(index.get(200, 4)).isEqualTo(ImageOutputFormat.JPG);
+		assertThat(index.get(300, 4)).isNull();
+
+		for (long id = 0; id < 1000; id += 2) {
+			index.remove(200, id);
+		}
+		assertThat(index.size()).isEqualTo(500);
+		for (long id = 0; id < 1000; id++) {
+			assertThat(index.get(200, id) != null).isEqualTo(id % 2 == 1);
+		}
+	}
+
+	/**
+	 * Tests {@link ThumbnailIndex#load(Path)}.
+	 *
+	 * @throws IOException If creating the test files fails.
+	 */
+	@Test
+	void load() throws IOException {
+		Path dir = Files.createTempDirectory("ThumbnailIndexTest");
+		try {
+			Files.createDirectories(dir.resolve("100w"));
+			Files.createFile(dir.resolve("100w").resolve("1.jpg"));
+			Files.createFile(dir.resolve("100w").resolve("2.png"));
+			Files.createFile(dir.resolve("100w").resolve("notes.txt"));
+			// Sharded layout
+			Files.createDirectories(dir.resolve("100w").resolve("4"));
+			Files.createFile(dir.resolve("100w").resolve("4").resolve("260.jpg"));
+			Files.createDirectories(dir.resolve("other"));
+			Files.createFile(dir.resolve("other").resolve("3.jpg"));
+
+			ThumbnailIndex index = new ThumbnailIndex();
+			assertThat(index.isLoaded()).isFalse();
+			index.load(dir);
+			assertThat(index.isLoaded()).isTrue();
+			assertThat(index.size()).isEqualTo(3);
+			assertThat(index.get(100, 1)).isEqualTo(ImageOutputFormat.JPG);
+			assertThat(index.get(100, 2)).isEqualTo(ImageOutputFormat.PNG);
+			assertThat(index.get(100, 260)).isEqualTo(ImageOutputFormat.JPG);
+		} finally {
+			FileUtils.deleteDirectoryQuietly(dir);
+		}
+	}
+}
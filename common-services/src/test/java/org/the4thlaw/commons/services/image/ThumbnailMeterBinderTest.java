@@ -0,0 +1,45 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests for {@link ThumbnailMeterBinder}.
+ */
+class ThumbnailMeterBinderTest {
+	/**
+	 * Tests that the meters are registered and fed by the service.
+	 *
+	 * @throws IOException If creating the test directory fails.
+	 */
+	@Test
+	void bindTo() throws IOException {
+		Path thumbDir = Files.createTempDirectory("ThumbnailMeterBinderTest");
+		try {
+			BaseThumbnailService service = new BaseThumbnailServiceTest.ThumbnailService(thumbDir, 1);
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			new ThumbnailMeterBinder(service).bindTo(registry);
+
+			assertThat(registry.get("thumbnails.executor.queued").gauge().value()).isZero();
+			assertThat(registry.get("thumbnails.requests").tag("result", "overload").counter().count()).isZero();
+
+			try {
+				service.getThumbnailAsync(42, 200, true, () -> thumbDir.resolve("missing.jpg")).join();
+			} catch (RuntimeException e) {
+				// Expected, the image doesn't exist
+			}
+			assertThat(registry.get("thumbnails.requests").tag("result", "miss").counter().count()).isEqualTo(1);
+		} finally {
+			FileUtils.deleteDirectoryQuietly(thumbDir);
+		}
+	}
+}
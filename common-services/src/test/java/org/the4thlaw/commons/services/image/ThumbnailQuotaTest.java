@@ -0,0 +1,86 @@
+package org.the4thlaw.commons.services.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.the4thlaw.commons.utils.io.FileUtils;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link ThumbnailQuota}.
+ */
+class ThumbnailQuotaTest {
+	/**
+	 * Tests {@link ThumbnailQuota#enforce(Path, java.util.function.BiConsumer)}.
+	 *
+	 * @throws IOException If creating the test files fails.
+	 */
+	@Test
+	void enforce() throws IOException {
+		Path dir = Files.createTempDirectory("ThumbnailQuotaTest");
+		try {
+			Path widthDir = Files.createDirectories(dir.resolve("100w"));
+			for (int id = 1; id <= 4; id++) {
+				Path file = Files.write(widthDir.resolve(id + ".jpg"), new byte[100]);
+				// The higher the ID, the more recent
+				Files.setLastModifiedTime(file, FileTime.fromMillis(id * 1000L));
+			}
+
+			ThumbnailQuota quota = new ThumbnailQuota(300);
+			// Thumbnail 1 is the oldest but was just served
+			quota.recordAccess(new ThumbnailKey(1, 100));
+
+			List<ThumbnailKey> evicted = new ArrayList<>();
+			assertThat(quota.enforce(dir, (key, file) -> evicted.add(key))).isEqualTo(2);
+			assertThat(evicted).containsExactly(new ThumbnailKey(2, 100), new ThumbnailKey(3, 100));
+			assertThat(widthDir.resolve("1.jpg")).exists();
+			assertThat(widthDir.resolve("2.jpg")).doesNotExist();
+			assertThat(widthDir.resolve("3.jpg")).doesNotExist();
+			assertThat(widthDir.resolve("4.jpg")).exists();
+
+			// Under the quota now
+			assertThat(quota.enforce(dir, (key, file) -> evicted.add(key))).isZero();
+		} finally {
+			FileUtils.deleteDirectoryQuietly(dir);
+		}
+	}
+
+	/**
+	 * Tests that thumbnails linking to the same file are counted once, and only free space once they are all evicted.
+	 *
+	 * @throws IOException If creating the test files fails.
+	 */
+	@Test
+	void enforceWithLinks() throws IOException {
+		Path dir = Files.createTempDirectory("ThumbnailQuotaTest");
+		try {
+			Path widthDir = Files.createDirectories(dir.resolve("100w"));
+			Path shared = Files.write(widthDir.resolve("1.jpg"), new byte[100]);
+			Files.createLink(widthDir.resolve("2.jpg"), shared);
+			Files.setLastModifiedTime(shared, FileTime.fromMillis(1000L));
+			for (int id = 3; id <= 4; id++) {
+				Path file = Files.write(widthDir.resolve(id + ".jpg"), new byte[100]);
+				Files.setLastModifiedTime(file, FileTime.fromMillis(id * 1000L));
+			}
+
+			// 300 bytes on disk, even though the thumbnails add up to 400
+			List<ThumbnailKey> evicted = new ArrayList<>();
+			assertThat(new ThumbnailQuota(300).enforce(dir, (key, file) -> evicted.add(key))).isZero();
+
+			// Evicting the first link alone doesn't free anything
+			assertThat(new ThumbnailQuota(250).enforce(dir, (key, file) -> evicted.add(key))).isEqualTo(2);
+			assertThat(evicted).containsExactlyInAnyOrder(new ThumbnailKey(1, 100), new ThumbnailKey(2, 100));
+			assertThat(widthDir.resolve("3.jpg")).exists();
+			assertThat(widthDir.resolve("4.jpg")).exists();
+		} finally {
+			FileUtils.deleteDirectoryQuietly(dir);
+		}
+	}
+}
@@ -2,8 +2,11 @@ package org.the4thlaw.commons.utils.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +61,38 @@ public final class FileUtils {
 		}
 	}
 
+	/**
+	 * Gets a unique path for a temporary file in the same directory as a target file, so that the temporary file can
+	 * be written and then {@link #moveAtomically(Path, Path) moved} to the target.
+	 * <p>
+	 * The file is not created. Unlike files from {@code Files.createTempFile}, which are restricted to their owner, a
+	 * file created at this path gets the default permissions for new files, and so does the target once it is moved.
+	 * </p>
+	 * 
+	 * @param target The target file.
+	 * @return The path of the temporary file, a hidden file whose name starts with the name of the target.
+	 */
+	public static Path getTempSibling(Path target) {
+		return target.toAbsolutePath().resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+	}
+
+	/**
+	 * Moves a file to a target, replacing it if it exists. The move is atomic if the file system supports it, so
+	 * that readers of the target either see its previous or its new contents.
+	 * 
+	 * @param source The file to move.
+	 * @param target The target file.
+	 * @throws IOException If moving the file fails.
+	 */
+	public static void moveAtomically(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			LOGGER.debug("Atomic moves are not supported for {}, moving it normally", target);
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 	/**
 	 * Deletes a directory recursively, and log if deletion failed but don't throw an exception.
 	 * 
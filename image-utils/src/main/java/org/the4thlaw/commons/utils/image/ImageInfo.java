@@ -0,0 +1,78 @@
+package org.the4thlaw.commons.utils.image;
+
+import java.awt.Dimension;
+
+/**
+ * Basic information about an image, as can be read from its headers.
+ */
+public final class ImageInfo {
+	private final int width;
+	private final int height;
+	private final String formatName;
+	private final boolean alpha;
+
+	/**
+	 * Creates the image information.
+	 * 
+	 * @param width The image width.
+	 * @param height The image height.
+	 * @param formatName The lower-case name of the image format, e.g. <code>jpeg</code> or <code>png</code>.
+	 * @param alpha Whether the image has an alpha channel.
+	 */
+	public ImageInfo(int width, int height, String formatName, boolean alpha) {
+		this.width = width;
+		this.height = height;
+		this.formatName = formatName;
+		this.alpha = alpha;
+	}
+
+	/**
+	 * Gets the image width.
+	 * 
+	 * @return The width, in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the image height.
+	 * 
+	 * @return The height, in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the image dimensions.
+	 * 
+	 * @return The dimensions, in pixels.
+	 */
+	public Dimension getDimensions() {
+		return new Dimension(width, height);
+	}
+
+	/**
+	 * Gets the name of the image format.
+	 * 
+	 * @return The lower-case name of the format, e.g. <code>jpeg</code> or <code>png</code>.
+	 */
+	public String getFormatName() {
+		return formatName;
+	}
+
+	/**
+	 * Checks whether the image has an alpha channel.
+	 * 
+	 * @return <code>true</code> if the image has an alpha channel.
+	 */
+	public boolean hasAlpha() {
+		return alpha;
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height + " " + formatName + (alpha ? " with alpha" : "");
+	}
+}
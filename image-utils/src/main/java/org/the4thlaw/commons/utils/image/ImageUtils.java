@@ -1,17 +1,28 @@
 package org.the4thlaw.commons.utils.image;
 
+import java.awt.Dimension;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 
@@ -19,7 +30,6 @@ import org.the4thlaw.commons.utils.io.FileUtils;
 import org.the4thlaw.commons.utils.io.FilenameUtils;
 
 import org.imgscalr.Scalr;
-import org.imgscalr.Scalr.Method;
 import org.imgscalr.Scalr.Mode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +43,14 @@ import org.slf4j.LoggerFactory;
  */
 public final class ImageUtils {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ImageUtils.class);
+	/** The number of bytes used by a pixel in a decoded image, assuming an integer ARGB raster. */
+	private static final int BYTES_PER_PIXEL = 4;
+	/**
+	 * When subsampling the source image while decoding it, the minimum ratio between the subsampled width and the
+	 * target width. The final downscale is done with a high quality algorithm on the remaining pixels, which avoids
+	 * aliasing artifacts.
+	 */
+	private static final int SUBSAMPLING_MARGIN = 2;
 
 	private ImageUtils() {
 	}
@@ -46,40 +64,76 @@ public final class ImageUtils {
 	 * @throws IOException If getting the width fails.
 	 */
 	public static int getImageWidth(File image) throws IOException {
-		int w = getImageWidthEfficient(image);
-		if (w > 0) {
-			LOGGER.trace("Efficiently got the image width for {}", image);
-			return w;
+		return getImageDimensions(image).width;
+	}
+
+	/**
+	 * Gets the dimensions of an image. In most case, this operation only checks the headers. If that fails, the image
+	 * will be loaded in memory.
+	 * 
+	 * @param image The image to scan.
+	 * @return The image dimensions.
+	 * @throws IOException If getting the dimensions fails.
+	 */
+	public static Dimension getImageDimensions(File image) throws IOException {
+		return getImageInfo(image).getDimensions();
+	}
+
+	/**
+	 * Gets basic information about an image. In most case, this operation only checks the headers. If that fails, the
+	 * image will be loaded in memory.
+	 * 
+	 * @param image The image to scan.
+	 * @return The image information.
+	 * @throws IOException If getting the information fails.
+	 */
+	public static ImageInfo getImageInfo(File image) throws IOException {
+		ImageInfo info = getImageInfoEfficient(image);
+		if (info != null) {
+			LOGGER.trace("Efficiently got the image information for {}", image);
+			return info;
 		}
-		return getImageWidthMemoryIntensive(image);
+		return getImageInfoMemoryIntensive(image);
 	}
 
 	// Solution from https://stackoverflow.com/a/12164026/109813
 	// tested as more efficient by https://stackoverflow.com/a/14888091/109813
-	private static int getImageWidthEfficient(File image) {
+	private static ImageInfo getImageInfoEfficient(File image) {
 		String suffix = FilenameUtils.getFileExtension(image.getName());
 		Iterator<ImageReader> iter = ImageIO.getImageReadersBySuffix(suffix);
 		while (iter.hasNext()) {
 			ImageReader reader = iter.next();
 			try (ImageInputStream stream = new FileImageInputStream(image)) {
 				reader.setInput(stream);
-				return reader.getWidth(reader.getMinIndex());
+				int index = reader.getMinIndex();
+				ImageTypeSpecifier type = reader.getRawImageType(index);
+				if (type == null) {
+					Iterator<ImageTypeSpecifier> types = reader.getImageTypes(index);
+					type = types.hasNext() ? types.next() : null;
+				}
+				boolean alpha = type != null && type.getColorModel().hasAlpha();
+				return new ImageInfo(reader.getWidth(index), reader.getHeight(index),
+						reader.getFormatName().toLowerCase(Locale.ROOT), alpha);
 			} catch (IOException e) {
-				LOGGER.debug("Failed to determine the image width efficiently", e);
-				return -1;
+				LOGGER.debug("Failed to determine the image information efficiently", e);
+				return null;
 			} finally {
 				reader.dispose();
 			}
 		}
-		return -1;
+		return null;
 
 	}
 
-	private static int getImageWidthMemoryIntensive(File image) throws IOException {
+	private static ImageInfo getImageInfoMemoryIntensive(File image) throws IOException {
 		BufferedImage buffImage = null;
 		try {
 			buffImage = ImageIO.read(image);
-			return buffImage.getWidth();
+			if (buffImage == null) {
+				throw new IIOException("Failed to open image " + image + ", potential unsupported image format");
+			}
+			return new ImageInfo(buffImage.getWidth(), buffImage.getHeight(), getFormatName(image),
+					buffImage.getColorModel().hasAlpha());
 		} finally {
 			if (buffImage != null) {
 				buffImage.flush();
@@ -87,6 +141,56 @@ public final class ImageUtils {
 		}
 	}
 
+	/**
+	 * Gets the name of the format of an image from the reader that can decode it, so that it is named the same way
+	 * as by {@link #getImageInfoEfficient(File)} (e.g. <code>jpeg</code> rather than <code>jpg</code>).
+	 */
+	private static String getFormatName(File image) throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(image)) {
+			Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+			if (readers != null && readers.hasNext()) {
+				ImageReader reader = readers.next();
+				try {
+					return reader.getFormatName().toLowerCase(Locale.ROOT);
+				} finally {
+					reader.dispose();
+				}
+			}
+		}
+		return FilenameUtils.getFileExtension(image.getName()).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Estimates the peak heap memory needed to {@link #resize(Path, int, Function) resize} an image.
+	 * <p>
+	 * The estimate accounts for the decoded source at four bytes per pixel, after subsampling, plus the intermediate
+	 * images created by the progressive downscaling, which add up to at most half of the source.
+	 * </p>
+	 * 
+	 * @param dimensions The dimensions of the source image.
+	 * @param maxWidth The largest width the image will be resized to.
+	 * @return The estimated memory, in bytes.
+	 */
+	public static long estimateResizeMemory(Dimension dimensions, int maxWidth) {
+		int subsampling = getSubsampling(dimensions.width, maxWidth);
+		long width = (dimensions.width + subsampling - 1) / subsampling;
+		long height = (dimensions.height + subsampling - 1) / subsampling;
+		long sourceBytes = width * height * BYTES_PER_PIXEL;
+		return sourceBytes + sourceBytes / 2;
+	}
+
+	/**
+	 * Gets the largest subsampling factor that still leaves enough pixels for a quality downscale to the target
+	 * width. Images aren't subsampled for non-positive widths.
+	 */
+	private static int getSubsampling(int sourceWidth, int maxWidth) {
+		if (maxWidth <= 0) {
+			return 1;
+		}
+		// The margin must not overflow for huge widths
+		return (int) Math.max(1, sourceWidth / ((long) maxWidth * SUBSAMPLING_MARGIN));
+	}
+
 	public enum ImageOutputFormat {
 		JPG, PNG;
 
@@ -101,37 +205,152 @@ public final class ImageUtils {
 
 	public static Path resize(Path image, int maxWidth, Function<ImageOutputFormat, Path> outputPath)
 			throws IIOException {
-		BufferedImage buffImage;
+		return resize(image, new int[] { maxWidth }, (w, fmt) -> outputPath.apply(fmt)).get(maxWidth);
+	}
+
+	/**
+	 * Resizes an image to several widths, decoding it only once. The thumbnails are generated from the largest to the
+	 * smallest, each one being derived from the previous one rather than from the original image.
+	 * <p>
+	 * If writing a thumbnail fails, the thumbnails written before are kept.
+	 * </p>
+	 * 
+	 * @param image The image to resize.
+	 * @param maxWidths The widths of the thumbnails.
+	 * @param outputPath A function giving the path of the thumbnail for a width and format.
+	 * @return The paths of the thumbnails, by width.
+	 * @throws IIOException If reading the image or writing a thumbnail fails.
+	 */
+	public static Map<Integer, Path> resize(Path image, int[] maxWidths,
+			BiFunction<Integer, ImageOutputFormat, Path> outputPath) throws IIOException {
+		return resize(image, maxWidths, outputPath, ResizeObserver.NONE);
+	}
+
+	/**
+	 * Resizes an image to several widths, decoding it only once, and reports the time spent in each phase.
+	 * 
+	 * @param image The image to resize.
+	 * @param maxWidths The widths of the thumbnails.
+	 * @param outputPath A function giving the path of the thumbnail for a width and format.
+	 * @param observer The observer of the resize phases.
+	 * @return The paths of the thumbnails, by width.
+	 * @throws IIOException If reading the image or writing a thumbnail fails.
+	 * @see #resize(Path, int[], BiFunction)
+	 */
+	public static Map<Integer, Path> resize(Path image, int[] maxWidths,
+			BiFunction<Integer, ImageOutputFormat, Path> outputPath, ResizeObserver observer) throws IIOException {
+		return resize(image, maxWidths, outputPath, observer, ResizeQuality.HIGH);
+	}
+
+	/**
+	 * Resizes an image to several widths, decoding it only once, with a given quality.
+	 * 
+	 * @param image The image to resize.
+	 * @param maxWidths The widths of the thumbnails.
+	 * @param outputPath A function giving the path of the thumbnail for a width and format.
+	 * @param observer The observer of the resize phases.
+	 * @param quality The quality of the resize.
+	 * @return The paths of the thumbnails, by width.
+	 * @throws IIOException If reading the image or writing a thumbnail fails.
+	 * @see #resize(Path, int[], BiFunction)
+	 */
+	public static Map<Integer, Path> resize(Path image, int[] maxWidths,
+			BiFunction<Integer, ImageOutputFormat, Path> outputPath, ResizeObserver observer, ResizeQuality quality)
+			throws IIOException {
+		int[] widths = IntStream.of(maxWidths).distinct().sorted().toArray();
+		Map<Integer, Path> outputs = new TreeMap<>();
+
+		long time = System.nanoTime();
+		BufferedImage buffImage = read(image, widths[widths.length - 1]);
+		observer.onDecoded(System.nanoTime() - time);
+		BufferedImage source = buffImage;
 		try {
-			buffImage = ImageIO.read(image.toFile());
-		} catch (IOException e) {
-			throw new IIOException("I/O error while reading the source image", e);
+			for (int i = widths.length - 1; i >= 0; i--) {
+				int width = widths[i];
+				time = System.nanoTime();
+				BufferedImage buffThumb = scale(image, source, width, quality);
+				observer.onResized(width, System.nanoTime() - time);
+				if (source != buffImage) {
+					source.flush();
+				}
+				source = buffThumb;
+				time = System.nanoTime();
+				outputs.put(width, write(buffThumb, fmt -> outputPath.apply(width, fmt)));
+				observer.onEncoded(width, System.nanoTime() - time);
+			}
+		} finally {
+			buffImage.flush();
+			source.flush();
 		}
 
-		if (buffImage == null) {
-			throw new IIOException("Failed to open image " + image + ", potential unsupported image format");
+		return outputs;
+	}
+
+	/**
+	 * Reads an image, subsampling it during decoding if it is much larger than needed. This saves both decoding time
+	 * and memory on large images.
+	 */
+	private static BufferedImage read(Path image, int maxWidth) throws IIOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(image.toFile())) {
+			Iterator<ImageReader> iter = stream == null ? null : ImageIO.getImageReaders(stream);
+			if (iter == null || !iter.hasNext()) {
+				throw new IIOException("Failed to open image " + image + ", potential unsupported image format");
+			}
+
+			ImageReader reader = iter.next();
+			try {
+				reader.setInput(stream, true, true);
+				int index = reader.getMinIndex();
+				ImageReadParam param = reader.getDefaultReadParam();
+				int subsampling = getSubsampling(reader.getWidth(index), maxWidth);
+				if (subsampling > 1) {
+					LOGGER.trace("Subsampling image {} by a factor of {} while decoding it", image, subsampling);
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+				return reader.read(index, param);
+			} finally {
+				reader.dispose();
+			}
+		} catch (IIOException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new IIOException("I/O error while reading the source image", e);
 		}
+	}
 
+	private static BufferedImage scale(Path image, BufferedImage source, int maxWidth, ResizeQuality quality) {
 		long time = System.currentTimeMillis();
-		LOGGER.trace("Resizing image {} at width {}", image, maxWidth);
+		LOGGER.trace("Resizing image {} at width {} with quality {}", image, maxWidth, quality);
 
-		BufferedImage buffThumb = Scalr.resize(buffImage, Method.ULTRA_QUALITY, Mode.FIT_TO_WIDTH, maxWidth, 0,
-				Scalr.OP_ANTIALIAS);
+		BufferedImage buffThumb = Scalr.resize(source, quality.getMethod(), Mode.FIT_TO_WIDTH, maxWidth, 0,
+				quality.getOps());
 		LOGGER.debug("Thumbnail for {} generated in {}ms", image, System.currentTimeMillis() - time);
+		return buffThumb;
+	}
 
+	/**
+	 * Writes a thumbnail. The thumbnail is written to a temporary file in the same directory, then moved to its final
+	 * location so that readers never see a partially written file, and concurrent writers don't corrupt each other.
+	 */
+	private static Path write(BufferedImage buffThumb, Function<ImageOutputFormat, Path> outputPath)
+			throws IIOException {
 		ImageOutputFormat outputFormat = Transparency.OPAQUE == buffThumb.getTransparency() ? ImageOutputFormat.JPG
 				: ImageOutputFormat.PNG;
 		Path output = outputPath.apply(outputFormat);
 
+		Path temp = FileUtils.getTempSibling(output);
 		try {
-			ImageIO.write(buffThumb, outputFormat.getImageIOFormat(), output.toFile());
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE))) {
+				if (!ImageIO.write(buffThumb, outputFormat.getImageIOFormat(), out)) {
+					throw new IOException("No writer found for " + outputFormat.getImageIOFormat());
+				}
+			}
+			FileUtils.moveAtomically(temp, output);
 		} catch (IOException e) {
-			// Ensure we don't store invalid contents
-			FileUtils.deleteQuietly(output);
+			// Ensure we don't leave invalid contents behind
+			FileUtils.deleteQuietly(temp);
 			throw new IIOException("I/O error while writing the thumbnail", e);
-		} finally {
-			buffImage.flush();
-			buffThumb.flush();
 		}
 
 		return output;
@@ -0,0 +1,36 @@
+package org.the4thlaw.commons.utils.image;
+
+/**
+ * Observer of the phases of an image resize, for instance to collect metrics. All durations are in nanoseconds.
+ */
+public interface ResizeObserver {
+	/** An observer that does nothing. */
+	ResizeObserver NONE = new ResizeObserver() {
+	};
+
+	/**
+	 * Called once the source image has been decoded.
+	 * 
+	 * @param nanos The time spent decoding the image.
+	 */
+	default void onDecoded(long nanos) {
+	}
+
+	/**
+	 * Called once the image has been resized to a given width.
+	 * 
+	 * @param width The target width.
+	 * @param nanos The time spent resizing the image.
+	 */
+	default void onResized(int width, long nanos) {
+	}
+
+	/**
+	 * Called once a resized image has been encoded and written.
+	 * 
+	 * @param width The target width.
+	 * @param nanos The time spent encoding and writing the image.
+	 */
+	default void onEncoded(int width, long nanos) {
+	}
+}
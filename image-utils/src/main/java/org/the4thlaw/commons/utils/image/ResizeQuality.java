@@ -0,0 +1,32 @@
+package org.the4thlaw.commons.utils.image;
+
+import java.awt.image.BufferedImageOp;
+
+import org.imgscalr.Scalr;
+import org.imgscalr.Scalr.Method;
+
+/**
+ * The quality of a resize, which is a trade-off with its speed.
+ */
+public enum ResizeQuality {
+	/** A fast resize, which is an order of magnitude faster but shows some aliasing. Suitable for previews. */
+	PREVIEW(Method.BALANCED),
+	/** The best quality, with anti-aliasing. */
+	HIGH(Method.ULTRA_QUALITY, Scalr.OP_ANTIALIAS);
+
+	private final Method method;
+	private final BufferedImageOp[] ops;
+
+	ResizeQuality(Method method, BufferedImageOp... ops) {
+		this.method = method;
+		this.ops = ops;
+	}
+
+	Method getMethod() {
+		return method;
+	}
+
+	BufferedImageOp[] getOps() {
+		return ops;
+	}
+}
@@ -1,5 +1,6 @@
 package org.the4thlaw.commons.utils.image;
 
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -7,8 +8,19 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import org.the4thlaw.commons.utils.io.FileUtils;
 
@@ -38,6 +50,20 @@ class ImageUtilsTest {
 		assertThat(ImageUtils.getImageWidth(getFile("/image-42x16.png").toFile())).isEqualTo(42);
 	}
 
+	/**
+	 * Tests {@link ImageUtils#getImageDimensions(File)}.
+	 * 
+	 * @throws IOException In case of error while getting the image dimensions.
+	 * @throws URISyntaxException In case of error while getting the test data.
+	 */
+	@Test
+	void getImageDimensions() throws IOException, URISyntaxException {
+		assertThat(ImageUtils.getImageDimensions(getFile("/image-42x16.jpg").toFile()))
+				.isEqualTo(new Dimension(42, 16));
+		assertThat(ImageUtils.getImageDimensions(getFile("/image-42x16.png").toFile()))
+				.isEqualTo(new Dimension(42, 16));
+	}
+
 	@ParameterizedTest
 	@ValueSource(strings =	{ "/jpg-srgb.jpg", "/png-srgb.png", "/jpg-cmyk.jpg", "/webp-srgb.webp" })
 	void resize(String resourcePath) throws IOException, URISyntaxException {
@@ -50,4 +76,135 @@ class ImageUtilsTest {
 			FileUtils.deleteQuietly(output);
 		}
 	}
+
+	/**
+	 * Tests {@link ImageUtils#getImageInfo(File)}.
+	 * 
+	 * @throws IOException In case of error while getting the image information.
+	 * @throws URISyntaxException In case of error while getting the test data.
+	 */
+	@Test
+	void getImageInfo() throws IOException, URISyntaxException {
+		ImageInfo info = ImageUtils.getImageInfo(getFile("/image-42x16.png").toFile());
+		assertThat(info.getWidth()).isEqualTo(42);
+		assertThat(info.getHeight()).isEqualTo(16);
+		assertThat(info.getFormatName()).isEqualTo("png");
+
+		info = ImageUtils.getImageInfo(getFile("/image-42x16.jpg").toFile());
+		assertThat(info.getFormatName()).isEqualTo("jpeg");
+		assertThat(info.hasAlpha()).isFalse();
+
+		// Without a known extension, the image is decoded but its format is named the same way
+		Path unknown = Files.createTempFile("ImageUtilsTest-", ".img");
+		try {
+			Files.copy(getFile("/image-42x16.jpg"), unknown, StandardCopyOption.REPLACE_EXISTING);
+			info = ImageUtils.getImageInfo(unknown.toFile());
+			assertThat(info.getWidth()).isEqualTo(42);
+			assertThat(info.getFormatName()).isEqualTo("jpeg");
+		} finally {
+			FileUtils.deleteQuietly(unknown);
+		}
+	}
+
+	/**
+	 * Tests {@link ImageUtils#estimateResizeMemory(Dimension, int)}, which should account for subsampling.
+	 */
+	@Test
+	void estimateResizeMemory() {
+		Dimension dimensions = new Dimension(4000, 3000);
+		long full = ImageUtils.estimateResizeMemory(dimensions, 2000);
+		assertThat(full).isEqualTo(4000L * 3000 * 4 * 3 / 2);
+		// Subsampled by a factor of 10
+		assertThat(ImageUtils.estimateResizeMemory(dimensions, 200)).isEqualTo(full / 100);
+		// No subsampling for degenerate or huge widths
+		assertThat(ImageUtils.estimateResizeMemory(dimensions, 0)).isEqualTo(full);
+		assertThat(ImageUtils.estimateResizeMemory(dimensions, -1)).isEqualTo(full);
+		assertThat(ImageUtils.estimateResizeMemory(dimensions, Integer.MAX_VALUE)).isEqualTo(full);
+	}
+
+	/**
+	 * Tests {@link ImageUtils#resize(Path, int[], java.util.function.BiFunction)}.
+	 * 
+	 * @throws IOException In case of error while resizing the image.
+	 * @throws URISyntaxException In case of error while getting the test data.
+	 */
+	@Test
+	void resizeMultiple() throws IOException, URISyntaxException {
+		Path outputDir = Files.createTempDirectory("ImageUtilsTest");
+		try {
+			Map<Integer, Path> outputs = ImageUtils.resize(getFile("/jpg-srgb.jpg"), new int[] { 50, 100, 25 },
+					(w, f) -> outputDir.resolve(w + "." + f.getFileExtension()));
+			assertThat(outputs).containsOnlyKeys(25, 50, 100);
+			// No temporary files are left behind
+			try (Stream<Path> files = Files.list(outputDir)) {
+				assertThat(files).containsExactlyInAnyOrderElementsOf(outputs.values());
+			}
+			for (Map.Entry<Integer, Path> output : outputs.entrySet()) {
+				assertThat(output.getValue()).exists();
+				assertThat(ImageUtils.getImageWidth(output.getValue().toFile())).isEqualTo(output.getKey());
+			}
+		} finally {
+			FileUtils.deleteDirectoryQuietly(outputDir);
+		}
+	}
+
+	/**
+	 * Tests that resized images get the same permissions as any other file created in their directory, rather than
+	 * the owner-only permissions of temporary files.
+	 * 
+	 * @throws IOException In case of error while resizing the image.
+	 * @throws URISyntaxException In case of error while getting the test data.
+	 */
+	@Test
+	void resizePermissions() throws IOException, URISyntaxException {
+		Path outputDir = Files.createTempDirectory("ImageUtilsTest");
+		assumeTrue(Files.getFileAttributeView(outputDir, PosixFileAttributeView.class) != null);
+		try {
+			Path reference = outputDir.resolve("reference");
+			Files.newOutputStream(reference).close();
+			Path output = ImageUtils.resize(getFile("/jpg-srgb.jpg"), 50,
+					f -> outputDir.resolve("50." + f.getFileExtension()));
+
+			Set<PosixFilePermission> expected = Files.getPosixFilePermissions(reference);
+			assertThat(Files.getPosixFilePermissions(output)).isEqualTo(expected);
+		} finally {
+			FileUtils.deleteDirectoryQuietly(outputDir);
+		}
+	}
+
+	/**
+	 * Tests that a reader never sees a partially written image while the same output is being written over and over.
+	 * 
+	 * @throws Exception In case of error while resizing or reading the image.
+	 */
+	@Test
+	void resizeConcurrentRead() throws Exception {
+		Path outputDir = Files.createTempDirectory("ImageUtilsTest");
+		Path output = outputDir.resolve("output.jpg");
+		Path source = getFile("/jpg-srgb.jpg");
+		AtomicBoolean done = new AtomicBoolean();
+		try {
+			ImageUtils.resize(source, 200, f -> output);
+			CompletableFuture<Integer> reader = CompletableFuture.supplyAsync(() -> {
+				int reads = 0;
+				while (!done.get()) {
+					try {
+						assertThat(ImageIO.read(output.toFile())).isNotNull();
+					} catch (IOException e) {
+						throw new AssertionError("Could not read " + output, e);
+					}
+					reads++;
+				}
+				return reads;
+			});
+			for (int i = 0; i < 20; i++) {
+				ImageUtils.resize(source, 200, f -> output);
+			}
+			done.set(true);
+			assertThat(reader.get()).isPositive();
+		} finally {
+			done.set(true);
+			FileUtils.deleteDirectoryQuietly(outputDir);
+		}
+	}
 }